@@ -0,0 +1,62 @@
+package cn.com.turing;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.plugins.PluginInfo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A throwaway home directory for the benchmarks that need an {@link Environment}: a config
+ * directory, {@code dataPaths} data paths and a single plugin with a jar and a policy file.
+ */
+final class BenchmarkHome {
+
+    static final String PLUGIN_NAME = "bench-plugin";
+    static final String PLUGIN_JAR = "bench-plugin.jar";
+
+    /** a typical scripting plugin's policy, see modules/lang-groovy */
+    static final String PLUGIN_POLICY =
+            "grant {\n" +
+            "  permission java.lang.RuntimePermission \"createClassLoader\";\n" +
+            "  permission java.lang.RuntimePermission \"getClassLoader\";\n" +
+            "  permission java.lang.RuntimePermission \"accessClassInPackage.sun.reflect\";\n" +
+            "  permission java.lang.reflect.ReflectPermission \"suppressAccessChecks\";\n" +
+            "  permission java.util.PropertyPermission \"*\", \"read\";\n" +
+            "};\n";
+
+    final Path home;
+    final Environment environment;
+
+    BenchmarkHome(int dataPaths) throws IOException {
+        home = Files.createTempDirectory("turingsearch-bench").toRealPath();
+        Files.createDirectories(home.resolve("config"));
+        Path plugin = Files.createDirectories(home.resolve("plugins").resolve(PLUGIN_NAME));
+        // only the jar's name matters for the policy
+        Files.createFile(plugin.resolve(PLUGIN_JAR));
+        Files.write(plugin.resolve(PluginInfo.ES_PLUGIN_POLICY), PLUGIN_POLICY.getBytes(StandardCharsets.UTF_8));
+        String[] data = new String[dataPaths];
+        for (int i = 0; i < dataPaths; i++) {
+            data[i] = home.resolve("data" + i).toString();
+        }
+        Settings settings = Settings.builder()
+                .put("path.home", home.toString())
+                .putArray("path.data", data)
+                .put("path.logs", home.resolve("logs").toString())
+                .build();
+        environment = new Environment(settings);
+    }
+
+    /** the plugin's jar, as keyed in the plugin policy map */
+    Path pluginJar() {
+        return home.resolve("plugins").resolve(PLUGIN_NAME).resolve(PLUGIN_JAR);
+    }
+
+    void close() throws IOException {
+        IOUtils.rm(home);
+    }
+}
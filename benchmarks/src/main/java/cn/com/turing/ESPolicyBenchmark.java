@@ -0,0 +1,111 @@
+package cn.com.turing;
+
+import org.elasticsearch.bootstrap.BootstrapInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilePermission;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.PropertyPermission;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ESPolicy#implies} for the three kinds of domains it tells apart: core code (template
+ * policy, then the dynamic file permissions), a plugin jar (its own policy first) and scripts
+ * (the untrusted policy only). Each is checked for a granted and a denied permission, with and
+ * without the decision cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ESPolicyBenchmark {
+
+    /** see {@link Bootstrap#SECURITY_DECISION_CACHE_SETTING}, 0 disables the cache */
+    @Param({"0", "10000"})
+    public int decisionCacheSize;
+
+    private BenchmarkHome home;
+    private ESPolicy policy;
+
+    private ProtectionDomain core;
+    private ProtectionDomain plugin;
+    private ProtectionDomain untrusted;
+
+    /** a segment file on the node's last data path */
+    private Permission indexFile;
+    private Permission createClassLoader;
+    private Permission readProperty;
+    private Permission denied;
+
+    @Setup
+    public void setup() throws Exception {
+        home = new BenchmarkHome(4);
+        policy = new ESPolicy(Security.createPermissions(home.environment), Security.getPluginPermissions(home.environment),
+                true, decisionCacheSize, null);
+        core = domain(home.home.resolve("lib").resolve("turingsearch.jar").toUri().toURL());
+        plugin = domain(home.pluginJar().toRealPath().toUri().toURL());
+        untrusted = domain(new URL("file:" + BootstrapInfo.UNTRUSTED_CODEBASE));
+        indexFile = new FilePermission(home.home.resolve("data3").resolve("nodes/0/indices/logs/3/index/_4f.cfs").toString(), "read");
+        createClassLoader = new RuntimePermission("createClassLoader");
+        readProperty = new PropertyPermission("java.version", "read");
+        denied = new RuntimePermission("setFactory");
+        // the plugin policy is parsed on its first check, keep that out of the measurements
+        policy.implies(plugin, createClassLoader);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        home.close();
+    }
+
+    private static ProtectionDomain domain(URL location) {
+        return new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null);
+    }
+
+    @Benchmark
+    public boolean coreGranted() {
+        return policy.implies(core, indexFile);
+    }
+
+    @Benchmark
+    public boolean coreDenied() {
+        return policy.implies(core, denied);
+    }
+
+    @Benchmark
+    public boolean pluginGranted() {
+        return policy.implies(plugin, createClassLoader);
+    }
+
+    @Benchmark
+    public boolean pluginDenied() {
+        return policy.implies(plugin, denied);
+    }
+
+    @Benchmark
+    public boolean untrustedGranted() {
+        return policy.implies(untrusted, readProperty);
+    }
+
+    @Benchmark
+    public boolean untrustedDenied() {
+        return policy.implies(untrusted, denied);
+    }
+}
@@ -0,0 +1,102 @@
+package cn.com.turing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilePermission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File permission checks against the dynamic permissions of a node with many data paths:
+ * the plain {@link Permissions} the policy used to get, against {@link PathTriePermissions}. Every
+ * check creates its permission, like a real file access does: on jvms that canonicalize file
+ * permissions that is where the plain collection's side resolves the path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilePermissionsBenchmark {
+
+    /** number of path.data entries */
+    @Param({"1", "12", "48"})
+    public int dataPaths;
+
+    private PermissionCollection permissions;
+    private PermissionCollection trie;
+
+    /** a segment file on the last data path */
+    private String indexFile;
+    /** a path nothing grants */
+    private String denied;
+
+    @Setup
+    public void setup() {
+        permissions = new Permissions();
+        // canonicalizes like the policy does on this jvm: java 8, or -Djdk.io.permissionsUseCanonicalPath=true
+        trie = new PathTriePermissions();
+        for (PermissionCollection collection : new PermissionCollection[] { permissions, trie }) {
+            // classpath, one entry per jar
+            for (int i = 0; i < 60; i++) {
+                collection.add(new FilePermission("/usr/share/turingsearch/lib/lib-" + i + ".jar", "read,readlink"));
+            }
+            addPath(collection, "/usr/share/turingsearch/bin", "read,readlink");
+            addPath(collection, "/usr/share/turingsearch/lib", "read,readlink");
+            addPath(collection, "/usr/share/turingsearch/modules", "read,readlink");
+            addPath(collection, "/usr/share/turingsearch/plugins", "read,readlink");
+            addPath(collection, "/etc/turingsearch", "read,readlink");
+            addPath(collection, "/etc/turingsearch/scripts", "read,readlink");
+            addPath(collection, "/tmp", "read,readlink,write,delete");
+            addPath(collection, "/var/log/turingsearch", "read,readlink,write,delete");
+            for (int i = 0; i < dataPaths; i++) {
+                addPath(collection, "/data/disk" + i + "/turingsearch", "read,readlink,write,delete");
+            }
+            for (int i = 0; i < dataPaths; i++) {
+                addPath(collection, "/data/disk" + i + "/turingsearch/turingsearch", "read,readlink,write,delete");
+            }
+            for (int i = 0; i < 4; i++) {
+                addPath(collection, "/backup/repo" + i, "read,readlink,write,delete");
+            }
+        }
+        indexFile = "/data/disk" + (dataPaths - 1) + "/turingsearch/turingsearch/nodes/0/indices/logs/3/index/_4f.cfs";
+        denied = "/home/someone/.ssh/id_rsa";
+    }
+
+    private static void addPath(PermissionCollection collection, String path, String actions) {
+        collection.add(new FilePermission(path, actions));
+        collection.add(new FilePermission(path + "/-", actions));
+    }
+
+    @Benchmark
+    public boolean permissionsGranted() {
+        return permissions.implies(new FilePermission(indexFile, "read"));
+    }
+
+    @Benchmark
+    public boolean trieGranted() {
+        return trie.implies(new FilePermission(indexFile, "read"));
+    }
+
+    @Benchmark
+    public boolean permissionsDenied() {
+        return permissions.implies(new FilePermission(denied, "read"));
+    }
+
+    @Benchmark
+    public boolean trieDenied() {
+        return trie.implies(new FilePermission(denied, "read"));
+    }
+}
@@ -0,0 +1,150 @@
+package cn.com.turing;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.io.PathUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random page reads from a memory mapped file on a cold page cache, the access pattern of searches
+ * in the terms dictionary, with each {@link IndexFileAdvice.Advice}. The page cache of the
+ * file is dropped before every iteration, and the bytes the iteration read from disk
+ * ({@code read_bytes} of {@code /proc/self/io}) are reported as the {@code readKilobytes}
+ * secondary result: with {@code random} that is about one page per read, with {@code normal} the
+ * kernel's readahead around every fault.
+ * <p>
+ * Linux only. The file is created in {@code java.io.tmpdir}, which has to be on a real disk (not
+ * tmpfs) for the numbers to mean anything, e.g. {@code -jvmArgsAppend -Djava.io.tmpdir=/data/tmp}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexFileAdviceBenchmark {
+
+    static final int PAGE_SIZE = 4096;
+
+    @Param({ "normal", "random", "sequential" })
+    public String advice;
+
+    @Param({ "512" })
+    public int fileMegabytes;
+
+    @Param({ "4096" })
+    public int pageReads;
+
+    /** what the reads cost in io, a secondary result next to the time */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Io {
+
+        /** kilobytes read from disk by the process */
+        public long readKilobytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            readKilobytes = 0;
+        }
+    }
+
+    private Path dir;
+    private Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long address;
+    private int[] offsets;
+    private long readBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("turingsearch-bench");
+        file = dir.resolve("_0.tim");
+        Random random = new Random(42);
+        byte[] chunk = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < fileMegabytes; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        address = Pointer.nativeValue(Native.getDirectBufferPointer(buffer));
+        int pages = (int) (channel.size() / PAGE_SIZE);
+        offsets = new int[pageReads];
+        for (int i = 0; i < pageReads; i++) {
+            offsets[i] = random.nextInt(pages) * PAGE_SIZE;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void dropPageCache() {
+        // unmap our pages first, the kernel keeps mapped pages in the page cache
+        check(Natives.tryMadvise(address, buffer.capacity(), JNACLibrary.MADV_DONTNEED));
+        check(Natives.tryFadvise(file.toString(), JNALinuxLibrary.POSIX_FADV_DONTNEED));
+        check(Natives.tryMadvise(address, buffer.capacity(), IndexFileAdvice.Advice.parse("advice", advice).madvise));
+        readBytes = readBytes();
+    }
+
+    @Benchmark
+    public long readPages(Io io) {
+        long sum = 0;
+        for (int offset : offsets) {
+            sum += buffer.get(offset);
+        }
+        long now = readBytes();
+        io.readKilobytes += (now - readBytes) / 1024;
+        readBytes = now;
+        return sum;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // the mapping stays until the buffer is collected, linux deletes the file anyway
+        IOUtils.close(channel);
+        IOUtils.rm(dir);
+    }
+
+    private static void check(String error) {
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    /** the bytes this process made the kernel read from storage */
+    private static long readBytes() {
+        for (String line : ProcFiles.lines(PathUtils.get("/proc/self/io"))) {
+            if (line.startsWith("read_bytes:")) {
+                return Long.parseLong(line.substring("read_bytes:".length()).trim());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,60 @@
+package cn.com.turing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ESPolicy#getPermissions}'s check for the rmi class loader on the stack, at
+ * different stack depths: the full stack trace it used to take, against the class context.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RmiLoaderDetectionBenchmark {
+
+    /** frames added on top of the benchmark's own stack */
+    @Param({"10", "50", "200"})
+    public int depth;
+
+    @Benchmark
+    public boolean stackTrace() {
+        return stackTrace(depth);
+    }
+
+    @Benchmark
+    public boolean classContext() {
+        return classContext(depth);
+    }
+
+    private static boolean stackTrace(int depth) {
+        if (depth > 0) {
+            return stackTrace(depth - 1);
+        }
+        for (StackTraceElement element : Thread.currentThread().getStackTrace()) {
+            if (ESPolicy.RMI_LOADER_HANDLER.equals(element.getClassName()) && "loadClass".equals(element.getMethodName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean classContext(int depth) {
+        if (depth > 0) {
+            return classContext(depth - 1);
+        }
+        return ESPolicy.calledFromRmiLoader();
+    }
+}
@@ -0,0 +1,49 @@
+package cn.com.turing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the seccomp BPF program, without installing it: the instructions, and their
+ * serialization into the native {@code struct sock_fprog}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeccompBenchmark {
+
+    private Seccomp.Arch arch;
+    private Seccomp.SockFilter[] insns;
+
+    @Setup
+    public void setup() {
+        // the program does not depend on the architecture we run on, only on its constants
+        arch = Seccomp.ARCHITECTURES.get("amd64");
+        insns = Seccomp.filter(arch);
+    }
+
+    @Benchmark
+    public Seccomp.SockFilter[] filter() {
+        return Seccomp.filter(arch);
+    }
+
+    @Benchmark
+    public Seccomp.SockFProg program() {
+        Seccomp.SockFProg prog = new Seccomp.SockFProg(insns);
+        prog.write();
+        return prog;
+    }
+}
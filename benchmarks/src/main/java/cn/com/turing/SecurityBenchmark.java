@@ -0,0 +1,102 @@
+package cn.com.turing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PermissionCollection;
+import java.security.Policy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The startup cost of {@link Security}: building the dynamic permissions of a node with many data
+ * paths, and parsing a plugin's policy file against its jars. Each benchmark has its own state, so
+ * it only runs for the parameters it uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SecurityBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class DataPaths {
+
+        /** number of path.data entries */
+        @Param({"1", "12", "48"})
+        public int dataPaths;
+
+        private BenchmarkHome home;
+
+        @Setup
+        public void setup() throws Exception {
+            home = new BenchmarkHome(dataPaths);
+            // the data directories are created on the first call, keep that out of the measurements
+            Security.createPermissions(home.environment);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            home.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PolicyFile {
+
+        /** number of jars the policy file is expanded against */
+        @Param({"1", "20"})
+        public int codebases;
+
+        private BenchmarkHome home;
+        private URL policyFile;
+        private URL[] codebaseUrls;
+
+        @Setup
+        public void setup() throws Exception {
+            home = new BenchmarkHome(1);
+            // a policy that refers to each of its jars by name, like the ones of plugins with dependencies
+            StringBuilder policy = new StringBuilder(BenchmarkHome.PLUGIN_POLICY);
+            codebaseUrls = new URL[codebases];
+            for (int i = 0; i < codebases; i++) {
+                Path jar = Files.createFile(home.home.resolve("dependency-" + i + ".jar"));
+                codebaseUrls[i] = jar.toUri().toURL();
+                policy.append("grant codeBase \"${codebase.dependency-").append(i).append(".jar}\" {\n")
+                      .append("  permission java.net.SocketPermission \"*\", \"connect,resolve\";\n")
+                      .append("};\n");
+            }
+            Path file = home.home.resolve("bench.policy");
+            Files.write(file, policy.toString().getBytes(StandardCharsets.UTF_8));
+            policyFile = file.toUri().toURL();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            home.close();
+        }
+    }
+
+    @Benchmark
+    public PermissionCollection createPermissions(DataPaths state) throws Exception {
+        return Security.createPermissions(state.home.environment);
+    }
+
+    @Benchmark
+    public Policy readPolicy(PolicyFile state) {
+        return Security.readPolicy(state.policyFile, state.codebaseUrls);
+    }
+}
@@ -0,0 +1,70 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.cli.Terminal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a {@code start} command line with many {@code --key value} settings, as generated by
+ * deployment tooling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartParseBenchmark {
+
+    /** number of --key value pairs */
+    @Param({"10", "100", "1000"})
+    public int settings;
+
+    private BootstrapCLIParser parser;
+    private String[] args;
+
+    @Setup
+    public void setup() {
+        parser = new BootstrapCLIParser(Terminal.DEFAULT);
+        List<String> list = new ArrayList<>();
+        list.add("start");
+        list.add("-Dnode.master=true");
+        for (int i = 0; i < settings; i++) {
+            if (i % 2 == 0) {
+                list.add("--bench.setting_" + i);
+                list.add("value-" + i);
+            } else {
+                list.add("--bench.setting_" + i + "=value-" + i);
+            }
+        }
+        args = list.toArray(new String[list.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        // parsing sets system properties
+        System.clearProperty("es.node.master");
+        for (int i = 0; i < settings; i++) {
+            System.clearProperty("es.bench.setting_" + i);
+        }
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return parser.parse(args);
+    }
+}
@@ -0,0 +1,87 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.inject.CreationException;
+import org.elasticsearch.common.inject.spi.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Printing a {@link StartupError} for a guice {@link CreationException} with many messages and a
+ * deep root cause, its stack mostly made of long runs of guice frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupErrorBenchmark {
+
+    /** frames of the root cause's stack */
+    @Param({"100", "1000", "10000"})
+    public int frames;
+
+    /** causes between the first guice message's cause and the root cause */
+    @Param({"1", "20"})
+    public int causes;
+
+    private StartupError error;
+    private ByteArrayOutputStream bytes;
+    private PrintStream out;
+
+    @Setup
+    public void setup() {
+        Throwable cause = new IllegalStateException("root cause");
+        cause.setStackTrace(stack(frames));
+        for (int i = 0; i < causes; i++) {
+            cause = new RuntimeException("wrapped " + i, cause);
+        }
+        List<Message> messages = new ArrayList<>();
+        // guice reports every failed binding, the first one with a cause is printed
+        for (int i = 0; i < 50; i++) {
+            messages.add(new Message(Collections.emptyList(), "no implementation bound for service " + i, null));
+        }
+        messages.add(new Message(Collections.emptyList(), "error injecting constructor", cause));
+        error = new StartupError(new CreationException(messages));
+        bytes = new ByteArrayOutputStream();
+        out = new PrintStream(bytes);
+    }
+
+    /** runs of 20 guice frames, with a frame of our own in between */
+    private static StackTraceElement[] stack(int frames) {
+        StackTraceElement[] stack = new StackTraceElement[frames];
+        for (int i = 0; i < frames; i++) {
+            if (i % 21 == 0) {
+                stack[i] = new StackTraceElement("cn.com.turing.SomeService", "<init>", "SomeService.java", i);
+            } else {
+                stack[i] = new StackTraceElement(StartupError.GUICE_PACKAGE + ".internal.ConstructorInjector", "construct",
+                        "ConstructorInjector.java", i);
+            }
+        }
+        return stack;
+    }
+
+    @Benchmark
+    public int printStackTrace() {
+        bytes.reset();
+        error.printStackTrace(out);
+        out.flush();
+        return bytes.size();
+    }
+}
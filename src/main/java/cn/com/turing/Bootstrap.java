@@ -1,10 +1,11 @@
 package cn.com.turing;
 
 import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.StringHelper;
 import org.elasticsearch.Version;
 import org.elasticsearch.bootstrap.ConsoleCtrlHandler;
-import org.elasticsearch.bootstrap.JarHell;
+import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.common.PidFile;
 import org.elasticsearch.common.SuppressForbidden;
 import org.elasticsearch.common.cli.CliTool;
@@ -16,19 +17,39 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.logging.log4j.LogConfigurator;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.indices.flush.SyncedFlushService;
 import org.elasticsearch.monitor.jvm.JvmInfo;
 import org.elasticsearch.monitor.os.OsProbe;
 import org.elasticsearch.monitor.process.ProcessProbe;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.node.NodeBuilder;
 import org.elasticsearch.node.internal.InternalSettingsPreparer;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.threadpool.ThreadPool;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.Policy;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.elasticsearch.common.settings.Settings.Builder.EMPTY_SETTINGS;
 
@@ -49,10 +70,106 @@ final class Bootstrap {
      */
     // TODO: remove this hack when insecure defaults are removed from java
     static final String SECURITY_FILTER_BAD_DEFAULTS_SETTING = "security.manager.filter_bad_defaults";
+    /**
+     * how many permission check decisions the policy remembers, 0 evaluates every check against the policies.
+     */
+    static final String SECURITY_DECISION_CACHE_SETTING = "security.manager.decision_cache.size";
+    /** option to count permission checks per codebase, see {@link SecurityCheckStats} */
+    static final String SECURITY_STATS_SETTING = "security.manager.stats.enabled";
+    /** with stats enabled, time one in this many permission checks. 0 only counts them */
+    static final String SECURITY_STATS_SAMPLE_RATE_SETTING = "security.manager.stats.sample_rate";
+    /**
+     * number of threads used to run the independent startup phases (probes, jar hell, policy parsing, path checks)
+     * concurrently. 1 runs them one after another.
+     */
+    static final String STARTUP_THREADS_SETTING = "bootstrap.startup_threads";
+    /** option to skip the jar hell scan when the classpath did not change since it last passed */
+    static final String JAR_HELL_CACHE_SETTING = "bootstrap.jar_hell.cache";
+    /** requests to replay against the node once it started, before it reports ready. see {@link Warmup} */
+    static final String WARMUP_FILE_SETTING = "bootstrap.warmup.file";
+    /** maximum number of warm-up requests per second */
+    static final String WARMUP_RATE_SETTING = "bootstrap.warmup.rate";
+    /** the node reports ready after this long, even if the jit is still busy */
+    static final String WARMUP_MAX_TIME_SETTING = "bootstrap.warmup.max_time";
+    /** the jit counts as settled once a warm-up pass spends less than this share of its time compiling */
+    static final String WARMUP_SETTLED_COMPILE_RATIO_SETTING = "bootstrap.warmup.settled_compile_ratio";
+    /** file that exists while the node is ready for traffic, see {@link NodeLifecycle} */
+    static final String READINESS_FILE_SETTING = "bootstrap.readiness_file";
+    /** file with the node's lifecycle state, rewritten on every transition */
+    static final String STATE_FILE_SETTING = "bootstrap.state_file";
+    /** how long a shutdown waits for in-flight http requests before it closes the node */
+    static final String DRAIN_TIMEOUT_SETTING = "bootstrap.drain.timeout";
+    /** option to synced flush the local primaries on shutdown, so they recover without copying files after a restart */
+    static final String SHUTDOWN_SYNCED_FLUSH_SETTING = "bootstrap.shutdown.synced_flush.enabled";
+    /** how long a shutdown keeps retrying synced flushes of local primaries */
+    static final String SHUTDOWN_SYNCED_FLUSH_TIMEOUT_SETTING = "bootstrap.shutdown.synced_flush.timeout";
+    /** number of nodes to start in this jvm, set by the {@code cluster} command. see {@link LocalCluster} */
+    static final String LOCAL_CLUSTER_NODES_SETTING = "bootstrap.local_cluster.nodes";
+    /** http port of the first node of a local cluster, the others get the next ones */
+    static final String LOCAL_CLUSTER_HTTP_PORT_SETTING = "bootstrap.local_cluster.http_port";
+    /** transport port of the first node of a local cluster, the others get the next ones */
+    static final String LOCAL_CLUSTER_TRANSPORT_PORT_SETTING = "bootstrap.local_cluster.transport_port";
+    /** option to raise the soft resource limits to the hard ones at startup, see {@link ResourceLimits} */
+    static final String RLIMITS_RAISE_SETTING = "bootstrap.rlimits.raise";
+    /** minimum soft resource limits (open_files, processes, memlock, address_space), startup fails below them */
+    static final String RLIMITS_MIN_SETTING_PREFIX = "bootstrap.rlimits.min.";
+    /** how to lock memory: false, true (or all) or heap, see {@link MemoryLock} */
+    static final String MEMORY_LOCK_SETTING = "bootstrap.memory_lock";
+    /** option to also lock memory mapped later (MCL_FUTURE) */
+    static final String MEMORY_LOCK_FUTURE_SETTING = "bootstrap.memory_lock_future";
+    /** option to lock pages as they are touched (MCL_ONFAULT, MLOCK_ONFAULT), linux 4.4+ */
+    static final String MEMORY_LOCK_ON_FAULT_SETTING = "bootstrap.memory_lock_on_fault";
+    /** transparent huge pages for the java heap: default, huge or no_huge. see {@link TransparentHugePages} */
+    static final String THP_HEAP_SETTING = "bootstrap.transparent_huge_pages.heap";
+    /** transparent huge pages for memory mapped files on the data paths: default, huge or no_huge */
+    static final String THP_INDEX_FILES_SETTING = "bootstrap.transparent_huge_pages.index_files";
+    /** how often new index file mappings are looked for */
+    static final String THP_REFRESH_INTERVAL_SETTING = "bootstrap.transparent_huge_pages.refresh_interval";
+    /** memory policy on numa hosts: default or interleave. see {@link NumaPlacement} */
+    static final String NUMA_MEMORY_POLICY_SETTING = "bootstrap.numa.memory_policy";
+    /** numa nodes whose cpus a thread pool's threads are pinned to, by pool name */
+    static final String NUMA_THREAD_POOLS_SETTING_PREFIX = "bootstrap.numa.thread_pools.";
+    /** cpus and io priority of a thread pool's threads, by pool name. see {@link ThreadPlacement} */
+    static final String THREAD_POOLS_SETTING_PREFIX = "bootstrap.thread_pools.";
+    /** option to size the node for the cpus of its cgroup, see {@link Cgroup} */
+    static final String CGROUP_AUTO_SIZE_SETTING = "bootstrap.cgroup.auto_size";
+    /** option to advise access patterns for the mmapped index files, see {@link IndexFileAdvice} */
+    static final String INDEX_FILE_ADVICE_ENABLED_SETTING = "bootstrap.index_files.advice.enabled";
+    /** madvise advice for the searcher's mappings, by file extension: normal, random, sequential or willneed. merges read through them too */
+    static final String INDEX_FILE_ADVICE_SEARCH_SETTING_PREFIX = "bootstrap.index_files.advice.search.";
+    /** madvise advice for the mappings of peer recoveries and snapshots */
+    static final String INDEX_FILE_ADVICE_COPY_SETTING = "bootstrap.index_files.advice.copy";
+    /** how often new index file mappings are looked for */
+    static final String INDEX_FILE_ADVICE_REFRESH_INTERVAL_SETTING = "bootstrap.index_files.advice.refresh_interval";
+    /** option to sample cpu, memory and io pressure, see {@link PressureMonitor} */
+    static final String PRESSURE_ENABLED_SETTING = "bootstrap.pressure.enabled";
+    /** how often pressure is sampled */
+    static final String PRESSURE_INTERVAL_SETTING = "bootstrap.pressure.interval";
+    /** pressure in percent (cpu, memory or io) from which bulk and reindex requests are shed */
+    static final String PRESSURE_SHED_SETTING_PREFIX = "bootstrap.pressure.shed.";
     private static volatile Bootstrap INSTANCE;
-    private final CountDownLatch keepAliveLatch = new CountDownLatch(1);
+    /** created as soon as the class is loaded from main, so it covers cli parsing and settings too */
+    private static final StartupTimeline timeline = new StartupTimeline();
     private final Thread keepAliveThread;
+    private final Object shutdownMutex = new Object();
     private volatile Node node;
+    /** the other nodes of a local cluster, empty unless started by the {@code cluster} command */
+    private final List<Node> localClusterNodes = new CopyOnWriteArrayList<>();
+    private volatile NodeLifecycle lifecycle;
+    private Warmup warmup;
+    private TimeValue drainTimeout;
+    /** null if no synced flush on shutdown */
+    private TimeValue syncedFlushTimeout;
+    /** null if no region is advised */
+    private TransparentHugePages transparentHugePages;
+    /** data paths of all nodes in this jvm */
+    private Path[] dataPaths;
+    /** null if no thread pool is pinned */
+    private ThreadPlacement threadPlacement;
+    /** null if index files are not advised */
+    private IndexFileAdvice indexFileAdvice;
+    /** null if pressure is not sampled */
+    private PressureMonitor pressureMonitor;
 
     /**
      * creates a new instance
@@ -62,26 +179,22 @@ final class Bootstrap {
             @Override
             public void run() {
                 try {
-                    keepAliveLatch.await();
+                    lifecycle.awaitStopped();
                 } catch (InterruptedException e) {
                     // bail out
                 }
             }
         }, "elasticsearch[keepAlive/" + Version.CURRENT + "]");
+        // keep this thread alive (non daemon thread) until the node is stopped
         keepAliveThread.setDaemon(false);
-        // keep this thread alive (non daemon thread) until we shutdown
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                keepAliveLatch.countDown();
-            }
-        });
     }
 
     /**
      * initialize native resources
      */
-    public static void initializeNatives(Path tmpFile, boolean mlockAll, boolean seccomp, boolean ctrlHandler) {
+    public static void initializeNatives(Path tmpFile, ResourceLimits resourceLimits, NumaPlacement numa,
+                                         TransparentHugePages transparentHugePages, MemoryLock memoryLock, boolean seccomp,
+                                         boolean ctrlHandler) {
         final ESLogger logger = Loggers.getLogger(Bootstrap.class);
 
         // check if the user is running as root, and bail
@@ -93,20 +206,27 @@ final class Bootstrap {
             }
         }
 
+        // raise resource limits first: a higher memlock limit helps mlockall, and on BSD
+        // seccomp drops the process limit to zero
+        resourceLimits.apply();
+
         // enable secure computing mode
         if (seccomp) {
             Natives.trySeccomp(tmpFile);
         }
 
-        // mlockall if requested
-        if (mlockAll) {
-            if (Constants.WINDOWS) {
-                Natives.tryVirtualLock();
-            } else {
-                Natives.tryMlockall();
-            }
+        // set the numa memory policy before anything is locked: locking touches the pages, and
+        // touched pages stay where they are
+        numa.applyMemoryPolicy();
+
+        // same for huge pages: once locked, the heap's pages are faulted in at the size they had
+        if (transparentHugePages != null) {
+            transparentHugePages.adviseHeap();
         }
 
+        // mlockall (or just the heap) if requested
+        memoryLock.apply();
+
         // listener for windows close event
         if (ctrlHandler) {
             Natives.addConsoleCtrlHandler(new ConsoleCtrlHandler() {
@@ -129,6 +249,16 @@ final class Bootstrap {
             // we've already logged this.
         }
 
+        // and the linux syscalls: pool threads use them once the security manager is installed, and
+        // the constants callers use are inlined, so nothing else would load the class before that
+        if (Constants.LINUX) {
+            try {
+                JNALinuxLibrary.isAvailable();
+            } catch (Throwable ignored) {
+                // JNA is not available, that was logged already
+            }
+        }
+
         // init lucene random seed. it will use /dev/urandom where available:
         StringHelper.randomId();
     }
@@ -145,10 +275,45 @@ final class Bootstrap {
     }
 
     static void stop() {
-        try {
-            Releasables.close(INSTANCE.node);
-        } finally {
-            INSTANCE.keepAliveLatch.countDown();
+        INSTANCE.shutdown();
+    }
+
+    /**
+     * Drains and closes the node: stops taking http requests, waits for in-flight ones up to the
+     * drain timeout, synced flushes the local primaries if enabled, closes the node and moves to
+     * {@link NodeLifecycle.State#STOPPED}. Called from {@link #stop()} and the shutdown hook,
+     * whichever comes first does the work.
+     */
+    private void shutdown() {
+        synchronized (shutdownMutex) {
+            if (lifecycle == null) {
+                Releasables.close(node);
+                Releasables.close(localClusterNodes);
+                return;
+            }
+            NodeLifecycle.State previous = lifecycle.state();
+            if (lifecycle.moveTo(NodeLifecycle.State.DRAINING) == false) {
+                // already drained and closed
+                return;
+            }
+            try {
+                if (previous == NodeLifecycle.State.WARMING || previous == NodeLifecycle.State.READY) {
+                    lifecycle.drain(drainTimeout);
+                    if (syncedFlushTimeout != null) {
+                        ShutdownSyncedFlush.flushLocalPrimaries(node.injector().getInstance(ClusterService.class),
+                                node.injector().getInstance(SyncedFlushService.class), syncedFlushTimeout);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    Releasables.close(node);
+                    Releasables.close(localClusterNodes);
+                } finally {
+                    lifecycle.moveTo(NodeLifecycle.State.STOPPED);
+                }
+            }
         }
     }
 
@@ -160,8 +325,10 @@ final class Bootstrap {
         // Set the system property before anything has a chance to trigger its use
         System.setProperty("es.logger.prefix", "");
 
+        StartupTimeline.Phase phase = timeline.begin("cli_parse");
         BootstrapCLIParser bootstrapCLIParser = new BootstrapCLIParser();
         CliTool.ExitStatus status = bootstrapCLIParser.execute(args);
+        phase.end();
 
         if (CliTool.ExitStatus.OK != status) {
             exit(status.status());
@@ -175,10 +342,21 @@ final class Bootstrap {
             foreground = false;
         }
 
+        phase = timeline.begin("prepare_environment");
         Environment environment = initialSettings(foreground);
         Settings settings = environment.settings();
+        if (LocalCluster.size(settings) > 1) {
+            // the environment has to cover the data paths of all nodes
+            settings = LocalCluster.clusterSettings(settings);
+            environment = new Environment(settings);
+        }
+        phase.end();
+        phase = timeline.begin("log_configure");
         LogConfigurator.configure(settings, true);
+        phase.end();
+        timeline.loggingConfigured();
         checkForCustomConfFile();
+        BootstrapStats.register("startup", timeline);
 
         if (environment.pidFile() != null) {
             PidFile.create(environment.pidFile(), true);
@@ -202,11 +380,14 @@ final class Bootstrap {
             }
 
             // fail if using broken version
+            phase = timeline.begin("jvm_check");
             JVMCheck.check();
+            phase.end();
 
             INSTANCE.setup(true, settings, environment);
 
             INSTANCE.start();
+            timeline.completed(environment.logsFile(), settings.get("cluster.name", "elasticsearch"));
 
             if (!foreground) {
                 closeSysError();
@@ -281,7 +462,7 @@ final class Bootstrap {
         System.exit(status);
     }
 
-    private void setup(boolean addShutdownHook, Settings settings, Environment environment) throws Exception {
+    private void setup(boolean addShutdownHook, Settings settings, final Environment environment) throws Exception {
         final ESLogger logger = Loggers.getLogger(Bootstrap.class);
         final DeprecationLogger deprecationLogger = new DeprecationLogger(logger);
 
@@ -290,38 +471,202 @@ final class Bootstrap {
             deprecationLogger.deprecated("setting [bootstrap.mlockall] is deprecated; use [bootstrap.memory_lock]");
         }
 
-        final Boolean memoryLock = settings.getAsBoolean("bootstrap.memory_lock", null);
         // both bootstrap.mlockall and bootstrap.memory_lock are set, refuse to start
-        if (mlockall != null && memoryLock != null) {
+        if (mlockall != null && settings.get(MEMORY_LOCK_SETTING) != null) {
             throw new IllegalArgumentException("both [bootstrap.mlockall] and [bootstrap.memory_lock] configured,"
                     + " just use [bootstrap.memory_lock]");
         }
 
-        initializeNatives(environment.tmpFile(),
-                memoryLock != null ? memoryLock : mlockall != null ? mlockall : false,
+        final Cgroup cgroup = Cgroup.read();
+        settings = sizeForCgroup(settings, cgroup);
+
+        final ResourceLimits resourceLimits = ResourceLimits.fromSettings(settings);
+        final MemoryLock memoryLock = MemoryLock.fromSettings(settings, mlockall);
+        final ThreadPlacement threads = ThreadPlacement.fromSettings(settings);
+        final NumaPlacement numa = NumaPlacement.fromSettings(settings, NumaTopology.read(), threads);
+        final TransparentHugePages thp = TransparentHugePages.fromSettings(settings);
+        if (thp.enabled()) {
+            transparentHugePages = thp;
+        }
+        StartupTimeline.Phase phase = timeline.begin("natives");
+        initializeNatives(environment.tmpFile(), resourceLimits, numa, transparentHugePages, memoryLock,
                 settings.getAsBoolean("bootstrap.seccomp", true),
                 settings.getAsBoolean("bootstrap.ctrlhandler", true));
+        phase.end();
+        BootstrapStats.register("rlimits", resourceLimits);
+        BootstrapStats.register("memory_lock", memoryLock);
+        BootstrapStats.register("memory_breakdown", MemoryBreakdown.self(environment.dataFiles()));
+        if (cgroup.version != 0) {
+            BootstrapStats.register("cgroup", cgroup);
+        }
+        if (numa.enabled()) {
+            BootstrapStats.register("numa", numa);
+        }
+        if (threads.isEmpty() == false) {
+            threadPlacement = threads;
+            BootstrapStats.register("thread_placement", threads);
+        }
+        dataPaths = environment.dataFiles();
+        if (transparentHugePages != null) {
+            BootstrapStats.register("transparent_huge_pages", transparentHugePages);
+        }
+        indexFileAdvice = IndexFileAdvice.fromSettings(settings);
+        if (indexFileAdvice != null) {
+            BootstrapStats.register("index_file_advice", indexFileAdvice);
+        }
 
-        // initialize probes before the security manager is installed
-        initializeProbes();
+        lifecycle = new NodeLifecycle(NodeLifecycle.file(settings, READINESS_FILE_SETTING), NodeLifecycle.file(settings, STATE_FILE_SETTING));
+        lifecycle.init();
+        BootstrapStats.register("lifecycle", lifecycle);
+        pressureMonitor = PressureMonitor.fromSettings(settings);
+        if (pressureMonitor != null) {
+            BootstrapStats.register("pressure", pressureMonitor);
+        }
+        drainTimeout = settings.getAsTime(DRAIN_TIMEOUT_SETTING, TimeValue.timeValueSeconds(30));
+        if (settings.getAsBoolean(SHUTDOWN_SYNCED_FLUSH_SETTING, false)) {
+            syncedFlushTimeout = settings.getAsTime(SHUTDOWN_SYNCED_FLUSH_TIMEOUT_SETTING, TimeValue.timeValueSeconds(30));
+        }
 
         if (addShutdownHook) {
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
-                    if (node != null) {
-                        node.close();
-                    }
+                    shutdown();
                 }
             });
         }
 
-        // look for jar hell
-        JarHell.checkJarHell();
+        // the following phases don't depend on each other, so run them concurrently. natives are
+        // already initialized (seccomp is inherited by the new threads) and the security manager is
+        // only installed once all of them are done, so the install order stays the same.
+        final boolean securityEnabled = settings.getAsBoolean(SECURITY_SETTING, true);
+        final Map<String,Policy> pluginPolicies;
+        final ExecutorService startupPool = newStartupPool(settings);
+        try {
+            List<Future<?>> phases = new ArrayList<>();
+            // initialize probes before the security manager is installed
+            phases.add(startupPool.submit(timeline.timed("probes", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    initializeProbes();
+                    return null;
+                }
+            })));
+            // look for jar hell
+            final StartupCache jarHellCache = settings.getAsBoolean(JAR_HELL_CACHE_SETTING, true) ? new StartupCache(environment.tmpFile()) : null;
+            phases.add(startupPool.submit(timeline.timed("jar_hell", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    JarHellCache.checkJarHell(jarHellCache);
+                    return null;
+                }
+            })));
+            // the stats bean must be registered before the security manager is installed
+            phases.add(startupPool.submit(timeline.timed("stats_mbean", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    BootstrapStats.registerMBean();
+                    return null;
+                }
+            })));
+            Future<Map<String,Policy>> policies = null;
+            if (securityEnabled) {
+                // parse plugin policies and make sure writable paths exist, the security manager needs both
+                policies = startupPool.submit(timeline.timed("plugin_policies", new Callable<Map<String,Policy>>() {
+                    @Override
+                    public Map<String,Policy> call() throws Exception {
+                        return Security.getPluginPermissions(environment);
+                    }
+                }));
+                final Path[] dataFiles = environment.dataFiles();
+                final Path[] dataWithClusterFiles = environment.dataWithClusterFiles();
+                for (int i = 0; i < dataFiles.length; i++) {
+                    final Path dataFile = dataFiles[i];
+                    final Path dataWithClusterFile = dataWithClusterFiles[i];
+                    phases.add(startupPool.submit(timeline.timed("path.data [" + dataFile + "]", new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            Security.ensurePathExists("path.data", dataFile);
+                            Security.ensurePathExists("path.data", dataWithClusterFile);
+                            return null;
+                        }
+                    })));
+                }
+            }
+            for (Future<?> future : phases) {
+                await(future);
+            }
+            pluginPolicies = policies != null ? await(policies) : null;
+        } finally {
+            startupPool.shutdownNow();
+        }
+
+        // read the warm-up requests before the security manager is installed, and fail early if they are broken
+        String warmupFile = settings.get(WARMUP_FILE_SETTING);
+        if (warmupFile != null) {
+            warmup = new Warmup(Warmup.parse(environment.configFile().resolve(warmupFile)),
+                    settings.getAsDouble(WARMUP_RATE_SETTING, 50d),
+                    settings.getAsTime(WARMUP_MAX_TIME_SETTING, TimeValue.timeValueMinutes(2)),
+                    settings.getAsDouble(WARMUP_SETTLED_COMPILE_RATIO_SETTING, 0.05d));
+            BootstrapStats.register("warmup", warmup);
+        }
 
         // install SM after natives, shutdown hooks, etc.
-        setupSecurity(settings, environment);
+        phase = timeline.begin("security");
+        setupSecurity(settings, environment, pluginPolicies);
+        phase.end();
+
+        phase = timeline.begin("node_build");
+        int localClusterSize = LocalCluster.size(settings);
+        if (localClusterSize > 1) {
+            node = buildNode(LocalCluster.nodeSettings(settings, 0));
+            for (int i = 1; i < localClusterSize; i++) {
+                localClusterNodes.add(buildNode(LocalCluster.nodeSettings(settings, i)));
+            }
+        } else {
+            node = buildNode(settings);
+        }
+        if (threadPlacement != null) {
+            // before the nodes start, so their pools have (almost) no threads yet
+            threadPlacement.install(node.injector().getInstance(ThreadPool.class));
+            for (Node localClusterNode : localClusterNodes) {
+                threadPlacement.install(localClusterNode.injector().getInstance(ThreadPool.class));
+            }
+        }
+        phase.end();
+    }
 
+    /**
+     * Sets {@code processors}, which sizes the node's thread pools, to what the cgroup allows
+     * unless it is set already. Also warns if the heap leaves too little of the cgroup's memory
+     * for the page cache: the caches of the node are sized relative to the heap, so the heap is
+     * what has to fit.
+     */
+    static Settings sizeForCgroup(Settings settings, Cgroup cgroup) {
+        final ESLogger logger = Loggers.getLogger(Bootstrap.class);
+        if (cgroup.memoryLimitBytes > 0) {
+            long heap = Runtime.getRuntime().maxMemory();
+            if (heap >= cgroup.memoryLimitBytes) {
+                logger.warn("max heap [{}] does not fit the cgroup memory limit [{}], the node will be killed once the heap fills up",
+                        new ByteSizeValue(heap), new ByteSizeValue(cgroup.memoryLimitBytes));
+            } else if (heap > cgroup.memoryLimitBytes / 2) {
+                logger.warn("max heap [{}] leaves less than half of the cgroup memory limit [{}] for the page cache",
+                        new ByteSizeValue(heap), new ByteSizeValue(cgroup.memoryLimitBytes));
+            }
+        }
+        if (settings.getAsBoolean(CGROUP_AUTO_SIZE_SETTING, true) == false || settings.get("processors") != null) {
+            return settings;
+        }
+        int available = Runtime.getRuntime().availableProcessors();
+        int processors = cgroup.processors(available);
+        if (processors == available) {
+            return settings;
+        }
+        logger.info("sizing the node for the [{}] processors the cgroup allows, the jvm sees [{}]", processors, available);
+        return Settings.builder().put(settings).put("processors", processors).build();
+    }
+
+    private static Node buildNode(Settings settings) {
         // We do not need to reload system properties here as we have already applied them in building the settings and
         // reloading could cause multiple prompts to the user for values if a system property was specified with a prompt
         // placeholder
@@ -329,20 +674,197 @@ final class Bootstrap {
                 .put(settings)
                 .put(InternalSettingsPreparer.IGNORE_SYSTEM_PROPERTIES_SETTING, true)
                 .build();
-
-        NodeBuilder nodeBuilder = NodeBuilder.nodeBuilder().settings(nodeSettings);
-        node = nodeBuilder.build();
+        return NodeBuilder.nodeBuilder().settings(nodeSettings).build();
     }
 
-    private void setupSecurity(Settings settings, Environment environment) throws Exception {
+    private void setupSecurity(Settings settings, Environment environment, Map<String,Policy> pluginPolicies) throws Exception {
         if (settings.getAsBoolean(SECURITY_SETTING, true)) {
-            Security.configure(environment, settings.getAsBoolean(SECURITY_FILTER_BAD_DEFAULTS_SETTING, true));
+            int decisionCacheSize = settings.getAsInt(SECURITY_DECISION_CACHE_SETTING, 10000);
+            if (decisionCacheSize < 0) {
+                throw new IllegalArgumentException("[" + SECURITY_DECISION_CACHE_SETTING + "] must be >= 0, got [" + decisionCacheSize + "]");
+            }
+            SecurityCheckStats checkStats = null;
+            if (settings.getAsBoolean(SECURITY_STATS_SETTING, false)) {
+                int sampleRate = settings.getAsInt(SECURITY_STATS_SAMPLE_RATE_SETTING, 100);
+                if (sampleRate < 0) {
+                    throw new IllegalArgumentException("[" + SECURITY_STATS_SAMPLE_RATE_SETTING + "] must be >= 0, got [" + sampleRate + "]");
+                }
+                checkStats = new SecurityCheckStats(pluginPolicies, sampleRate);
+            }
+            Security.configure(environment, pluginPolicies, settings.getAsBoolean(SECURITY_FILTER_BAD_DEFAULTS_SETTING, true),
+                    decisionCacheSize, checkStats);
+        }
+    }
+
+    /** bounded pool for the startup phases, its threads are daemons so they never hold up the jvm */
+    private static ExecutorService newStartupPool(Settings settings) {
+        int threads = settings.getAsInt(STARTUP_THREADS_SETTING, Math.min(4, EsExecutors.boundedNumberOfProcessors(settings)));
+        if (threads < 1) {
+            throw new IllegalArgumentException("[" + STARTUP_THREADS_SETTING + "] must be >= 1, got [" + threads + "]");
+        }
+        return Executors.newFixedThreadPool(threads, EsExecutors.daemonThreadFactory("bootstrap"));
+    }
+
+    /** waits for {@code future}, rethrowing whatever the phase failed with */
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
         }
     }
 
+    /** prefix of the data path {@link #throwawayNodeSettings} creates */
+    static final String THROWAWAY_DATA_PREFIX = "throwaway-";
+
+    /** work done against a throwaway node, see {@link #runThrowawayNode} */
+    interface NodeTask {
+        void run(Node node) throws Exception;
+    }
+
+    /**
+     * Boots a throwaway node the way {@link #init} does, runs {@code task} against it and closes it
+     * again: used by the commands that need a real node, but not a long running one.
+     * {@code settings} should come from {@link #throwawayNodeSettings}, whose data path is deleted
+     * afterwards. The security manager is installed once this returns, so whatever the caller
+     * writes later has to be opened before.
+     */
+    static void runThrowawayNode(Settings settings, Environment environment, NodeTask task) throws Exception {
+        try {
+            LogConfigurator.configure(settings, true);
+            Bootstrap bootstrap = new Bootstrap();
+            bootstrap.setup(false, settings, environment);
+            try {
+                bootstrap.node.start();
+                task.run(bootstrap.node);
+            } finally {
+                bootstrap.node.close();
+            }
+        } finally {
+            for (Path data : environment.dataFiles()) {
+                // only the fresh data path of throwawayNodeSettings, never a configured one
+                if (data.getFileName().toString().startsWith(THROWAWAY_DATA_PREFIX) && data.getParent().equals(environment.tmpFile())) {
+                    IOUtils.rm(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Settings for a throwaway node: its own cluster name (so it doesn't join a real cluster on the
+     * same host), a fresh data path, loopback only and no memory locking.
+     */
+    static Settings throwawayNodeSettings(Settings settings, Environment environment, String name) throws IOException {
+        Path data = Files.createTempDirectory(environment.tmpFile(), THROWAWAY_DATA_PREFIX + name + "-");
+        Settings.Builder builder = Settings.builder().put(settings);
+        builder.remove("bootstrap.mlockall");
+        return builder
+                .put("cluster.name", name + "-" + ManagementFactory.getRuntimeMXBean().getName().replace('@', '-'))
+                .put("path.data", data.toString())
+                .put("bootstrap.memory_lock", false)
+                .put("network.host", "_local_")
+                .build();
+    }
+
+    /**
+     * Runs {@code task} on the management pool every {@code interval}, logging {@code failure} if it
+     * throws. The scheduler only hands it over, its single thread runs every timeout of the node. A
+     * run that is due while the previous one is still going is skipped, so runs never overlap.
+     */
+    static void scheduleManagementTask(final ThreadPool threadPool, TimeValue interval, final String failure, final Runnable task) {
+        final AtomicBoolean running = new AtomicBoolean();
+        threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (running.compareAndSet(false, true) == false) {
+                    return;
+                }
+                try {
+                    threadPool.executor(ThreadPool.Names.MANAGEMENT).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                task.run();
+                            } catch (Exception e) {
+                                Loggers.getLogger(Bootstrap.class).warn(failure, e);
+                            } finally {
+                                running.set(false);
+                            }
+                        }
+                    });
+                } catch (EsRejectedExecutionException e) {
+                    // the node is closing
+                    running.set(false);
+                }
+            }
+        }, interval);
+    }
+
     private void start() {
+        lifecycle.registerHandlers(node.injector().getInstance(RestController.class));
+        BootstrapStats.registerHandlers(node.injector().getInstance(RestController.class));
+        for (Node localClusterNode : localClusterNodes) {
+            // the stats are the jvm's, any node of the local cluster serves them
+            BootstrapStats.registerHandlers(localClusterNode.injector().getInstance(RestController.class));
+        }
+        if (pressureMonitor != null) {
+            // the whole host is under pressure, so every node in this jvm sheds
+            pressureMonitor.registerFilter(node.injector().getInstance(RestController.class));
+            for (Node localClusterNode : localClusterNodes) {
+                pressureMonitor.registerFilter(localClusterNode.injector().getInstance(RestController.class));
+            }
+        }
+        StartupTimeline.Phase phase = timeline.begin("node_start");
         node.start();
+        for (Node localClusterNode : localClusterNodes) {
+            localClusterNode.start();
+        }
+        phase.end();
+        if (transparentHugePages != null && transparentHugePages.indexFiles != TransparentHugePages.Advice.DEFAULT) {
+            // segments are mapped and unmapped all the time, keep advising the new ones
+            scheduleManagementTask(node.injector().getInstance(ThreadPool.class), transparentHugePages.refreshInterval,
+                    "unable to advise index file mappings", new Runnable() {
+                @Override
+                public void run() {
+                    transparentHugePages.adviseIndexFiles(dataPaths);
+                }
+            });
+        }
+        if (indexFileAdvice != null) {
+            // same as above, for the access pattern hints
+            scheduleManagementTask(node.injector().getInstance(ThreadPool.class), indexFileAdvice.refreshInterval,
+                    "unable to advise index file access patterns", new Runnable() {
+                @Override
+                public void run() {
+                    indexFileAdvice.adviseIndexFiles(dataPaths);
+                }
+            });
+        }
+        if (pressureMonitor != null) {
+            node.injector().getInstance(ThreadPool.class).scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pressureMonitor.run();
+                    } catch (Exception e) {
+                        Loggers.getLogger(Bootstrap.class).warn("unable to sample pressure", e);
+                    }
+                }
+            }, pressureMonitor.interval);
+        }
         keepAliveThread.start();
+        if (warmup != null && lifecycle.moveTo(NodeLifecycle.State.WARMING)) {
+            phase = timeline.begin("warmup");
+            warmup.run(node.client(), lifecycle);
+            phase.end();
+        }
+        lifecycle.moveTo(NodeLifecycle.State.READY);
     }
 }
 
@@ -7,11 +7,23 @@ import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.cli.CliTool;
 import org.elasticsearch.common.cli.CliToolConfig;
 import org.elasticsearch.common.cli.Terminal;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.monitor.jvm.JvmInfo;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.internal.InternalSettingsPreparer;
 
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -25,7 +37,8 @@ import static org.elasticsearch.common.cli.CliToolConfig.Builder.optionBuilder;
 final class BootstrapCLIParser extends CliTool {
 
     private static final CliToolConfig CONFIG = CliToolConfig.config("elasticsearch", BootstrapCLIParser.class)
-            .cmds(BootstrapCLIParser.Start.CMD, BootstrapCLIParser.Version.CMD)
+            .cmds(BootstrapCLIParser.Start.CMD, BootstrapCLIParser.Version.CMD, BootstrapCLIParser.Cds.CMD,
+                    BootstrapCLIParser.Cluster.CMD, BootstrapCLIParser.Bench.CMD, BootstrapCLIParser.Diagnose.CMD)
             .build();
 
     public BootstrapCLIParser() {
@@ -43,6 +56,14 @@ final class BootstrapCLIParser extends CliTool {
                 return BootstrapCLIParser.Start.parse(terminal, cli);
             case BootstrapCLIParser.Version.NAME:
                 return BootstrapCLIParser.Version.parse(terminal, cli);
+            case BootstrapCLIParser.Cds.NAME:
+                return BootstrapCLIParser.Cds.parse(terminal, cli);
+            case BootstrapCLIParser.Cluster.NAME:
+                return BootstrapCLIParser.Cluster.parse(terminal, cli);
+            case BootstrapCLIParser.Bench.NAME:
+                return BootstrapCLIParser.Bench.parse(terminal, cli);
+            case BootstrapCLIParser.Diagnose.NAME:
+                return BootstrapCLIParser.Diagnose.parse(terminal, cli);
             default:
                 assert false : "should never get here, if the user enters an unknown command, an error message should be shown before parse is called";
                 return null;
@@ -154,4 +175,251 @@ final class BootstrapCLIParser extends CliTool {
         }
     }
 
+    /**
+     * Creates a class data sharing archive of the classes a node loads while starting, see {@link ClassDataSharing}.
+     */
+    static class Cds extends CliTool.Command {
+
+        private static final String NAME = "cds";
+
+        private static final CliToolConfig.Cmd CMD = cmd(NAME, BootstrapCLIParser.Cds.class)
+                .options(
+                        optionBuilder("a", "archive").hasArg(true).required(false),
+                        Option.builder("D").argName("property=value").valueSeparator('=').numberOfArgs(2)
+                )
+                .build();
+
+        public static Command parse(Terminal terminal, CommandLine cli) {
+            // the node that records the classes must see the same settings
+            List<String> recordArgs = new ArrayList<>();
+            recordArgs.add(NAME);
+            recordArgs.addAll(setSystemProperties(cli));
+            return new Cds(terminal, cli.getOptionValue("archive"), recordArgs);
+        }
+
+        private final String archive;
+        private final List<String> recordArgs;
+
+        public Cds(Terminal terminal, String archive, List<String> recordArgs) {
+            super(terminal);
+            this.archive = archive;
+            this.recordArgs = recordArgs;
+        }
+
+        @Override
+        public ExitStatus execute(Settings settings, Environment env) throws Exception {
+            if (ClassDataSharing.isRecording()) {
+                // the environment we get was prepared before parse() set the -D properties
+                env = InternalSettingsPreparer.prepareEnvironment(Settings.EMPTY, terminal);
+                Settings recordingSettings = Bootstrap.throwawayNodeSettings(env.settings(), env, ClassDataSharing.TRAINING_NAME);
+                Bootstrap.runThrowawayNode(recordingSettings, new Environment(recordingSettings), new Bootstrap.NodeTask() {
+                    @Override
+                    public void run(Node node) throws Exception {
+                        ClassDataSharing.exercise(node);
+                    }
+                });
+                return ExitStatus.OK_AND_EXIT;
+            }
+            Path archivePath = ClassDataSharing.archive(env, archive);
+            List<String> options = ClassDataSharing.createArchive(terminal, archivePath, recordArgs);
+            terminal.println("created [%s], add these options to ES_JAVA_OPTS to use it:", archivePath);
+            terminal.println("  %s", Strings.collectionToDelimitedString(options, " "));
+            return ExitStatus.OK_AND_EXIT;
+        }
+    }
+
+    /**
+     * Starts a cluster of several nodes on loopback, for benchmarking on a single machine: either all
+     * in this jvm (booted like {@code start} does) or each in a child jvm. See {@link LocalCluster}.
+     */
+    static class Cluster extends CliTool.Command {
+
+        private static final String NAME = "cluster";
+
+        private static final CliToolConfig.Cmd CMD = cmd(NAME, BootstrapCLIParser.Cluster.class)
+                .options(
+                        optionBuilder("n", "nodes").hasArg(true).required(false),
+                        optionBuilder("m", "mode").hasArg(true).required(false),
+                        optionBuilder("H", "http-port").hasArg(true).required(false),
+                        optionBuilder("T", "transport-port").hasArg(true).required(false),
+                        Option.builder("D").argName("property=value").valueSeparator('=').numberOfArgs(2)
+                )
+                .build();
+
+        public static Command parse(Terminal terminal, CommandLine cli) {
+            String mode = cli.getOptionValue("mode", LocalCluster.MODE_JVM);
+            if (LocalCluster.MODE_JVM.equals(mode) == false && LocalCluster.MODE_PROCESS.equals(mode) == false) {
+                throw new IllegalArgumentException("unknown mode [" + mode + "], expected [" + LocalCluster.MODE_JVM + "] or ["
+                        + LocalCluster.MODE_PROCESS + "]");
+            }
+            setSystemProperties(cli);
+            System.setProperty("es." + Bootstrap.LOCAL_CLUSTER_NODES_SETTING, cli.getOptionValue("nodes", "3"));
+            System.setProperty("es." + Bootstrap.LOCAL_CLUSTER_HTTP_PORT_SETTING,
+                    cli.getOptionValue("http-port", Integer.toString(LocalCluster.DEFAULT_HTTP_PORT)));
+            System.setProperty("es." + Bootstrap.LOCAL_CLUSTER_TRANSPORT_PORT_SETTING,
+                    cli.getOptionValue("transport-port", Integer.toString(LocalCluster.DEFAULT_TRANSPORT_PORT)));
+            return new Cluster(terminal, mode);
+        }
+
+        private final String mode;
+
+        public Cluster(Terminal terminal, String mode) {
+            super(terminal);
+            this.mode = mode;
+        }
+
+        @Override
+        public ExitStatus execute(Settings settings, Environment env) throws Exception {
+            if (LocalCluster.MODE_JVM.equals(mode)) {
+                // go on booting, Bootstrap.setup builds all the nodes
+                return ExitStatus.OK;
+            }
+            // the environment we get was prepared before parse() set the properties
+            env = InternalSettingsPreparer.prepareEnvironment(Settings.EMPTY, terminal);
+            int failed = LocalCluster.startProcesses(terminal, env.settings());
+            return failed == 0 ? ExitStatus.OK_AND_EXIT : ExitStatus.CODE_ERROR;
+        }
+    }
+
+    /**
+     * Runs a macro benchmark against a throwaway node and prints the results as json, see {@link MacroBenchmark}.
+     */
+    static class Bench extends CliTool.Command {
+
+        private static final String NAME = "bench";
+
+        private static final CliToolConfig.Cmd CMD = cmd(NAME, BootstrapCLIParser.Bench.class)
+                .options(
+                        optionBuilder("n", "docs").hasArg(true).required(false),
+                        optionBuilder("f", "fields").hasArg(true).required(false),
+                        optionBuilder("s", "doc-size").hasArg(true).required(false),
+                        optionBuilder("b", "bulk-size").hasArg(true).required(false),
+                        optionBuilder("t", "threads").hasArg(true).required(false),
+                        optionBuilder("q", "searches").hasArg(true).required(false),
+                        optionBuilder("w", "warmup-searches").hasArg(true).required(false),
+                        optionBuilder("S", "shards").hasArg(true).required(false),
+                        optionBuilder("r", "seed").hasArg(true).required(false),
+                        optionBuilder("o", "output").hasArg(true).required(false),
+                        Option.builder("D").argName("property=value").valueSeparator('=').numberOfArgs(2)
+                )
+                .build();
+
+        public static Command parse(Terminal terminal, CommandLine cli) {
+            setSystemProperties(cli);
+            MacroBenchmark benchmark = new MacroBenchmark(
+                    Integer.parseInt(cli.getOptionValue("docs", "100000")),
+                    MacroBenchmark.parseFields(cli.getOptionValue("fields", "text:2,keyword:2,long:2,double:1,date:1")),
+                    Integer.parseInt(cli.getOptionValue("doc-size", "512")),
+                    Integer.parseInt(cli.getOptionValue("bulk-size", "1000")),
+                    Integer.parseInt(cli.getOptionValue("threads", "8")),
+                    Integer.parseInt(cli.getOptionValue("searches", "20000")),
+                    Integer.parseInt(cli.getOptionValue("warmup-searches", "2000")),
+                    Integer.parseInt(cli.getOptionValue("shards", "1")),
+                    Long.parseLong(cli.getOptionValue("seed", "42")));
+            return new Bench(terminal, benchmark, cli.getOptionValue("output"));
+        }
+
+        private final MacroBenchmark benchmark;
+        private final String output;
+
+        public Bench(Terminal terminal, MacroBenchmark benchmark, String output) {
+            super(terminal);
+            this.benchmark = benchmark;
+            this.output = output;
+        }
+
+        @Override
+        public ExitStatus execute(Settings settings, Environment env) throws Exception {
+            // the environment we get was prepared before parse() set the -D properties
+            env = InternalSettingsPreparer.prepareEnvironment(Settings.EMPTY, terminal);
+            Settings benchSettings = Bootstrap.throwawayNodeSettings(env.settings(), env, MacroBenchmark.INDEX);
+            // opened before the node installs the security manager, which doesn't let us write anywhere else
+            try (OutputStream out = output == null ? null : Files.newOutputStream(PathUtils.get(output))) {
+                final BytesStreamOutput json = new BytesStreamOutput();
+                Bootstrap.runThrowawayNode(benchSettings, new Environment(benchSettings), new Bootstrap.NodeTask() {
+                    @Override
+                    public void run(Node node) throws Exception {
+                        try (XContentBuilder report = XContentFactory.jsonBuilder(json).prettyPrint()) {
+                            benchmark.run(node.client(), report);
+                        }
+                    }
+                });
+                if (out != null) {
+                    json.bytes().writeTo(out);
+                    terminal.println("results written to [%s]", output);
+                } else {
+                    terminal.println("%s", json.bytes().toUtf8());
+                }
+            }
+            return ExitStatus.OK_AND_EXIT;
+        }
+    }
+
+    /**
+     * Reports as json what the node would find on this host: whether memory can be locked and syscall
+     * filters installed, resource limits, kernel memory settings, NUMA and cgroups. With {@code --pid}
+     * also where the memory of the node running as that process goes. See {@link HostDiagnostics}.
+     */
+    static class Diagnose extends CliTool.Command {
+
+        private static final String NAME = "diagnose";
+
+        private static final CliToolConfig.Cmd CMD = cmd(NAME, BootstrapCLIParser.Diagnose.class)
+                .options(
+                        optionBuilder("p", "pid").hasArg(true).required(false)
+                )
+                .build();
+
+        public static Command parse(Terminal terminal, CommandLine cli) {
+            String pid = cli.getOptionValue("pid");
+            if (pid == null) {
+                return new Diagnose(terminal, -1);
+            }
+            long parsed;
+            try {
+                parsed = Long.parseLong(pid);
+            } catch (NumberFormatException e) {
+                parsed = -1;
+            }
+            if (parsed <= 0) {
+                throw new IllegalArgumentException("--pid must be a process id, got [" + pid + "]");
+            }
+            return new Diagnose(terminal, parsed);
+        }
+
+        /** -1 if none */
+        private final long pid;
+
+        public Diagnose(Terminal terminal, long pid) {
+            super(terminal);
+            this.pid = pid;
+        }
+
+        @Override
+        public ExitStatus execute(Settings settings, Environment env) throws Exception {
+            // the placement settings and data paths come from elasticsearch.yml
+            env = InternalSettingsPreparer.prepareEnvironment(Settings.EMPTY, terminal);
+            MemoryBreakdown memory = pid < 0 ? null : MemoryBreakdown.process(pid, env.dataFiles());
+            XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint().startObject();
+            new HostDiagnostics(env.settings(), memory).toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+            terminal.println("%s", builder.string());
+            return ExitStatus.OK_AND_EXIT;
+        }
+    }
+
+    /** sets the {@code -D} options of {@code cli} as {@code es.} system properties, and returns them as {@code -D} arguments */
+    static List<String> setSystemProperties(CommandLine cli) {
+        List<String> args = new ArrayList<>();
+        if (cli.hasOption("D")) {
+            Properties properties = cli.getOptionProperties("D");
+            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                String key = (String) entry.getKey();
+                String propertyName = key.startsWith("es.") ? key : "es." + key;
+                System.setProperty(propertyName, entry.getValue().toString());
+                args.add("-D" + propertyName + "=" + entry.getValue());
+            }
+        }
+        return args;
+    }
 }
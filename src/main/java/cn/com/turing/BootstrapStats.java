@@ -0,0 +1,124 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Node level stats owned by the bootstrap code (startup timeline, security manager, natives, ...).
+ * <p>
+ * The node stats api lives in core and cannot be extended from here, so the sections are served
+ * on the node's own http port as {@code GET} {@value #STATS_PATH} (or one section with
+ * {@code GET} {@value #STATS_PATH}{@code /<section>}), and over JMX as {@value #OBJECT_NAME}, next
+ * to the jvm's own platform beans.
+ */
+final class BootstrapStats implements BootstrapStatsMXBean {
+
+    static final String OBJECT_NAME = "cn.com.turing:type=BootstrapStats";
+    static final String STATS_PATH = "/_bootstrap/stats";
+
+    private static final ESLogger logger = Loggers.getLogger(BootstrapStats.class);
+
+    private static final Map<String,ToXContent> SECTIONS = new ConcurrentSkipListMap<>();
+
+    /** no instantiation outside of {@link #registerMBean()} */
+    private BootstrapStats() {}
+
+    /** adds (or replaces) the section {@code name} */
+    static void register(String name, ToXContent section) {
+        SECTIONS.put(name, section);
+    }
+
+    /**
+     * Registers the stats bean with the platform MBean server.
+     * Must happen before the security manager is installed.
+     */
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new BootstrapStats(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // stats are best effort, never fail startup because of them
+            logger.warn("unable to register [{}]", e, OBJECT_NAME);
+        }
+    }
+
+    /** serves the stats on {@code controller}, like the node's own apis */
+    static void registerHandlers(RestController controller) {
+        controller.registerHandler(RestRequest.Method.GET, STATS_PATH, new RestHandler() {
+            @Override
+            public void handleRequest(RestRequest request, RestChannel channel) throws Exception {
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, toXContent(channel.newBuilder())));
+            }
+        });
+        controller.registerHandler(RestRequest.Method.GET, STATS_PATH + "/{section}", new RestHandler() {
+            @Override
+            public void handleRequest(RestRequest request, RestChannel channel) throws Exception {
+                String name = request.param("section");
+                ToXContent section = SECTIONS.get(name);
+                if (section == null) {
+                    channel.sendResponse(new BytesRestResponse(RestStatus.NOT_FOUND, "no bootstrap stats section [" + name + "]"));
+                    return;
+                }
+                XContentBuilder builder = channel.newBuilder().startObject();
+                builder.startObject(name);
+                section.toXContent(builder, ToXContent.EMPTY_PARAMS);
+                builder.endObject();
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder.endObject()));
+            }
+        });
+    }
+
+    /** renders all sections into {@code builder}, one object per section */
+    static XContentBuilder toXContent(XContentBuilder builder) throws IOException {
+        builder.startObject();
+        for (Map.Entry<String,ToXContent> entry : SECTIONS.entrySet()) {
+            builder.startObject(entry.getKey());
+            entry.getValue().toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+
+    @Override
+    public String[] getSections() {
+        return SECTIONS.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String getStats() {
+        try {
+            return toXContent(XContentFactory.jsonBuilder()).string();
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to render bootstrap stats", e);
+        }
+    }
+
+    @Override
+    public String section(String name) {
+        ToXContent section = SECTIONS.get(name);
+        if (section == null) {
+            return null;
+        }
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            section.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            return builder.endObject().string();
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to render bootstrap stats section [" + name + "]", e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package cn.com.turing;
+
+/**
+ * JMX view of {@link BootstrapStats}, all values are rendered as json.
+ */
+public interface BootstrapStatsMXBean {
+
+    /** names of all registered sections */
+    String[] getSections();
+
+    /** all sections as one json object */
+    String getStats();
+
+    /** a single section as json, or null if there is no such section */
+    String section(String name);
+}
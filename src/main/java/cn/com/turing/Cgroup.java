@@ -0,0 +1,205 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The cpu and memory limits of the cgroup the process runs in (linux), for cgroup v1 and v2.
+ * <p>
+ * Java 8 (before 8u191) and the node's own probes see the host's cpus and memory, not the
+ * container's, so {@link Bootstrap} sizes the node's thread pools from {@link #processors} unless
+ * {@code processors} is set. The cpu throttling counters and the memory usage are read again on
+ * every {@link #toXContent}, so the stats show whether the quota is hurting the node.
+ */
+final class Cgroup implements ToXContent {
+
+    static final String ROOT = "/sys/fs/cgroup";
+    /** v1 reports no memory limit as the largest page aligned long, anything from here on is unlimited */
+    static final long UNLIMITED_MEMORY = 1L << 62;
+
+    /** 1 or 2, 0 if the process is in no cgroup */
+    final int version;
+    /** the path of the cgroup below its hierarchy, null if none */
+    final String path;
+    /** -1 if unlimited */
+    final long cpuQuotaMicros;
+    final long cpuPeriodMicros;
+    /** null if unknown */
+    final BitSet cpuset;
+    /** -1 if unlimited */
+    final long memoryLimitBytes;
+    /** directories of the cpu and memory controllers, null if unknown */
+    private final String cpuDir;
+    private final String memoryDir;
+
+    Cgroup(int version, String path, long cpuQuotaMicros, long cpuPeriodMicros, BitSet cpuset, long memoryLimitBytes, String cpuDir,
+           String memoryDir) {
+        this.version = version;
+        this.path = path;
+        this.cpuQuotaMicros = cpuQuotaMicros;
+        this.cpuPeriodMicros = cpuPeriodMicros;
+        this.cpuset = cpuset;
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.cpuDir = cpuDir;
+        this.memoryDir = memoryDir;
+    }
+
+    static Cgroup read() {
+        return read(PathUtils.get("/proc/self/cgroup"), ROOT);
+    }
+
+    /** the cgroup listed in {@code procCgroup}, with the hierarchies mounted at {@code root} */
+    static Cgroup read(Path procCgroup, String root) {
+        // hierarchy-id:controllers:path, v2 has the single line 0::path
+        Map<String,String> paths = new HashMap<>();
+        for (String line : ProcFiles.lines(procCgroup)) {
+            String[] parts = line.split(":", 3);
+            if (parts.length == 3) {
+                for (String controller : parts[1].split(",")) {
+                    paths.put(controller, parts[2]);
+                }
+            }
+        }
+        if (paths.isEmpty()) {
+            return new Cgroup(0, null, -1, -1, null, -1, null, null);
+        }
+        if (paths.size() == 1 && paths.containsKey("")) {
+            String path = paths.get("");
+            String dir = dir(root, "", path);
+            long quota = -1;
+            long period = -1;
+            // "max 100000" or "200000 100000"
+            String cpuMax = ProcFiles.line(dir + "/cpu.max");
+            if (cpuMax != null) {
+                String[] parts = cpuMax.split(" ");
+                if (parts.length == 2 && "max".equals(parts[0]) == false) {
+                    quota = Long.parseLong(parts[0]);
+                    period = Long.parseLong(parts[1]);
+                }
+            }
+            return new Cgroup(2, path, quota, period, cpuset(dir + "/cpuset.cpus.effective"), memoryLimit(dir + "/memory.max"), dir, dir);
+        }
+        String cpuDir = paths.containsKey("cpu") ? dir(root, "cpu", paths.get("cpu")) : null;
+        long quota = -1;
+        long period = -1;
+        if (cpuDir != null) {
+            Long cfsQuota = ProcFiles.number(cpuDir + "/cpu.cfs_quota_us");
+            Long cfsPeriod = ProcFiles.number(cpuDir + "/cpu.cfs_period_us");
+            if (cfsQuota != null && cfsPeriod != null && cfsQuota > 0) {
+                quota = cfsQuota;
+                period = cfsPeriod;
+            }
+        }
+        BitSet cpuset = null;
+        if (paths.containsKey("cpuset")) {
+            String dir = dir(root, "cpuset", paths.get("cpuset"));
+            cpuset = cpuset(dir + "/cpuset.effective_cpus");
+            if (cpuset == null) {
+                cpuset = cpuset(dir + "/cpuset.cpus");
+            }
+        }
+        String memoryDir = paths.containsKey("memory") ? dir(root, "memory", paths.get("memory")) : null;
+        long memoryLimit = memoryDir == null ? -1 : memoryLimit(memoryDir + "/memory.limit_in_bytes");
+        return new Cgroup(1, paths.containsKey("cpu") ? paths.get("cpu") : paths.values().iterator().next(), quota, period, cpuset,
+                memoryLimit, cpuDir, memoryDir);
+    }
+
+    /**
+     * The directory of the cgroup at {@code path} of {@code controller}'s hierarchy. Inside a
+     * container the hierarchy is usually mounted at the process' own cgroup, so the path is tried
+     * below the mount first and the mount itself second.
+     */
+    private static String dir(String root, String controller, String path) {
+        String mount = controller.isEmpty() ? root : root + "/" + controller;
+        Path dir = PathUtils.get(mount + path);
+        return Files.isDirectory(dir) ? dir.toString() : mount;
+    }
+
+    private static BitSet cpuset(String file) {
+        String cpus = ProcFiles.line(file);
+        return cpus == null || cpus.isEmpty() ? null : NumaTopology.parseCpuList(cpus);
+    }
+
+    /** the limit in {@code file}, -1 if unlimited or unknown */
+    private static long memoryLimit(String file) {
+        Long limit = ProcFiles.number(file);
+        // v2 writes "max", which isn't a number
+        return limit == null || limit >= UNLIMITED_MEMORY ? -1 : limit;
+    }
+
+    /** whether any cpu or memory limit applies */
+    boolean limited() {
+        return cpuQuotaMicros > 0 || cpuset != null || memoryLimitBytes > 0;
+    }
+
+    /** the processors the cgroup lets the process use, at most {@code available} and at least 1 */
+    int processors(int available) {
+        int processors = available;
+        if (cpuQuotaMicros > 0 && cpuPeriodMicros > 0) {
+            // a quota of 1.5 cpus still runs 2 threads at a time, just throttled
+            processors = Math.min(processors, (int) ((cpuQuotaMicros + cpuPeriodMicros - 1) / cpuPeriodMicros));
+        }
+        if (cpuset != null && cpuset.cardinality() > 0) {
+            processors = Math.min(processors, cpuset.cardinality());
+        }
+        return Math.max(1, processors);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("version", version);
+        if (version == 0) {
+            return builder;
+        }
+        builder.field("path", path);
+        builder.field("processors", processors(Runtime.getRuntime().availableProcessors()));
+        if (cpuQuotaMicros > 0) {
+            builder.field("cpu_quota_micros", cpuQuotaMicros);
+            builder.field("cpu_period_micros", cpuPeriodMicros);
+            builder.field("cpus", String.format(Locale.ROOT, "%.2f", (double) cpuQuotaMicros / cpuPeriodMicros));
+        }
+        if (cpuset != null) {
+            builder.field("cpuset", NumaTopology.toCpuList(cpuset));
+        }
+        if (memoryLimitBytes > 0) {
+            builder.field("memory_limit_in_bytes", memoryLimitBytes);
+        }
+        if (memoryDir != null) {
+            Long usage = ProcFiles.number(memoryDir + (version == 2 ? "/memory.current" : "/memory.usage_in_bytes"));
+            if (usage != null) {
+                builder.field("memory_usage_in_bytes", usage);
+            }
+        }
+        if (cpuDir != null) {
+            // nr_periods 4096, nr_throttled 12, then throttled_time in nanos (v1) or throttled_usec (v2)
+            Map<String,Long> stat = new HashMap<>();
+            for (String line : ProcFiles.lines(PathUtils.get(cpuDir, "cpu.stat"))) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2) {
+                    stat.put(parts[0], Long.parseLong(parts[1]));
+                }
+            }
+            if (stat.containsKey("nr_throttled")) {
+                builder.startObject("throttling");
+                builder.field("periods", stat.get("nr_periods"));
+                builder.field("throttled_periods", stat.get("nr_throttled"));
+                if (stat.containsKey("throttled_time")) {
+                    builder.field("throttled_nanos", stat.get("throttled_time"));
+                } else if (stat.containsKey("throttled_usec")) {
+                    builder.field("throttled_nanos", stat.get("throttled_usec") * 1000);
+                }
+                builder.endObject();
+            }
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,59 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts jvms like the current one (same java, jvm options and classpath), for the commands that
+ * need a fresh jvm or several of them.
+ */
+final class ChildJvm {
+
+    /** no instantiation */
+    private ChildJvm() {}
+
+    /**
+     * Returns the java executable, jvm options and classpath of the current jvm, without the
+     * options that start with one of {@code droppedOptions}.
+     */
+    @SuppressForbidden(reason = "starts a jvm like the current one")
+    static List<String> javaCommand(List<String> droppedOptions) {
+        List<String> command = new ArrayList<>();
+        command.add(PathUtils.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (isDropped(option, droppedOptions) == false) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        return command;
+    }
+
+    private static boolean isDropped(String option, List<String> droppedOptions) {
+        for (String dropped : droppedOptions) {
+            if (option.startsWith(dropped)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** starts {@code command}, sharing our stdin, stdout and stderr */
+    static Process start(List<String> command) throws IOException {
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /** runs {@code command} to completion, and fails unless it exits with 0 */
+    static void run(List<String> command) throws IOException, InterruptedException {
+        int status = start(command).waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("command exited with status [" + status + "]: " + command);
+        }
+    }
+}
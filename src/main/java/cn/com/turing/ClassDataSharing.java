@@ -0,0 +1,127 @@
+package cn.com.turing;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cli.Terminal;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.Node;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates a class data sharing (AppCDS) archive of the classes a node loads while starting.
+ * <p>
+ * A jvm can't archive the classes it has already loaded, so this takes two more jvms, started with
+ * the same jvm options and classpath as the current one: the first boots a throwaway node (see
+ * {@link Bootstrap#runThrowawayNode}) with {@code -XX:DumpLoadedClassList}, the second turns that list
+ * into an archive with {@code -Xshare:dump}. Later launches that pass the archive with
+ * {@code -XX:SharedArchiveFile} map the classes instead of loading and verifying them, and nodes on
+ * the same host share those pages. The archive is only used with the exact same classpath, so it
+ * has to be created again after an upgrade or a plugin install.
+ */
+final class ClassDataSharing {
+
+    /** system property that tells the {@code cds} command it runs in the jvm that records the class list */
+    static final String RECORD_PROPERTY = "turingsearch.cds.record";
+    /** default archive, next to the jars it was created from */
+    static final String DEFAULT_ARCHIVE = "turingsearch.jsa";
+    static final String CLASS_LIST_SUFFIX = ".classlist";
+
+    /** name of the throwaway node's cluster, and of the index it creates */
+    static final String TRAINING_NAME = "cds-training";
+
+    /** jvm options that are not passed on to the jvms we start: they either clash with the dump or must not run twice */
+    private static final List<String> DROPPED_OPTIONS = Arrays.asList(
+            "-Xshare:", "-XX:SharedArchiveFile", "-XX:SharedClassListFile", "-XX:DumpLoadedClassList", "-XX:ArchiveClassesAtExit",
+            "-XX:+UseAppCDS", "-XX:+UnlockCommercialFeatures", "-agentlib", "-agentpath", "-javaagent", "-Xrunjdwp", "-Xdebug");
+
+    /** no instantiation */
+    private ClassDataSharing() {}
+
+    /** returns true if the current jvm is the one recording the class list */
+    static boolean isRecording() {
+        return Boolean.parseBoolean(System.getProperty(RECORD_PROPERTY));
+    }
+
+    /** returns the archive for {@code archive}, as given on the command line, or the default one */
+    static Path archive(Environment environment, String archive) {
+        if (archive != null) {
+            return PathUtils.get(archive).toAbsolutePath();
+        }
+        return environment.libFile().resolve(DEFAULT_ARCHIVE);
+    }
+
+    /** runs a few requests against the throwaway node, so the classes behind them are loaded too */
+    static void exercise(Node node) {
+        Client client = node.client();
+        client.admin().cluster().prepareHealth().setWaitForYellowStatus().get();
+        client.admin().indices().prepareCreate(TRAINING_NAME)
+                .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+                .get();
+        client.prepareIndex(TRAINING_NAME, "doc", "1").setSource("field", "value", "number", 1).setRefresh(true).get();
+        client.prepareGet(TRAINING_NAME, "doc", "1").get();
+        client.prepareSearch(TRAINING_NAME).setQuery(QueryBuilders.matchQuery("field", "value")).get();
+        client.admin().indices().prepareDelete(TRAINING_NAME).get();
+    }
+
+    /** records the class list and dumps the archive, returns the options to start a node with it */
+    static List<String> createArchive(Terminal terminal, Path archive, List<String> commandArgs) throws IOException, InterruptedException {
+        Path classList = archive.resolveSibling(archive.getFileName() + CLASS_LIST_SUFFIX);
+        Files.createDirectories(archive.toAbsolutePath().getParent());
+        List<String> appCdsOptions = appCdsOptions();
+        if (appCdsOptions == null) {
+            terminal.println("warning: this jvm can only share its own classes, the archive won't contain any of ours");
+            appCdsOptions = Collections.emptyList();
+        }
+
+        terminal.println("recording the classes loaded by a node to [%s]", classList);
+        List<String> record = ChildJvm.javaCommand(DROPPED_OPTIONS);
+        record.addAll(appCdsOptions);
+        record.add("-Xshare:off");
+        record.add("-XX:DumpLoadedClassList=" + classList);
+        record.add("-D" + RECORD_PROPERTY + "=true");
+        record.add(Turingsearch.class.getName());
+        record.addAll(commandArgs);
+        ChildJvm.run(record);
+
+        terminal.println("creating the archive [%s]", archive);
+        List<String> dump = ChildJvm.javaCommand(DROPPED_OPTIONS);
+        dump.addAll(appCdsOptions);
+        dump.add("-Xshare:dump");
+        dump.add("-XX:SharedClassListFile=" + classList);
+        dump.add("-XX:SharedArchiveFile=" + archive);
+        ChildJvm.run(dump);
+
+        List<String> options = new ArrayList<>(appCdsOptions);
+        options.add("-Xshare:auto");
+        options.add("-XX:SharedArchiveFile=" + archive);
+        return options;
+    }
+
+    /**
+     * Options that let this jvm archive application classes, null if it can't: java 8 and 9 only
+     * have it in the commercial Oracle builds, java 10 needs it switched on and later ones have it on.
+     */
+    static List<String> appCdsOptions() {
+        String version = System.getProperty("java.specification.version");
+        if ("1.8".equals(version) || "9".equals(version)) {
+            String runtime = System.getProperty("java.runtime.name", "");
+            if (runtime.startsWith("Java(TM)")) {
+                return Arrays.asList("-XX:+UnlockCommercialFeatures", "-XX:+UseAppCDS");
+            }
+            return null;
+        }
+        if ("10".equals(version)) {
+            return Collections.singletonList("-XX:+UseAppCDS");
+        }
+        return Collections.emptyList();
+    }
+}
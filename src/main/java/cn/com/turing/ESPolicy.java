@@ -2,11 +2,18 @@ package cn.com.turing;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 
 import org.elasticsearch.bootstrap.BootstrapInfo;
-import org.elasticsearch.bootstrap.JarHell;
 import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 
+import java.io.IOException;
+
+import java.lang.ref.WeakReference;
 import java.net.SocketPermission;
 import java.net.URL;
 import java.security.CodeSource;
@@ -16,11 +23,12 @@ import java.security.Permissions;
 import java.security.Policy;
 import java.security.ProtectionDomain;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Created by Lonly on 2016/11/28.
  */
-final class ESPolicy extends Policy {
+final class ESPolicy extends Policy implements ToXContent {
 
     /** template policy file, the one used in tests */
     static final String POLICY_RESOURCE = "security.policy";
@@ -32,9 +40,25 @@ final class ESPolicy extends Policy {
     final Policy system;
     final PermissionCollection dynamic;
     final Map<String,Policy> plugins;
+    /** decisions already made, null if disabled */
+    final Cache<DecisionKey,Boolean> decisions;
+    /** per codebase check counters, null if disabled */
+    final SecurityCheckStats checkStats;
+
+    /** our own domain, looked up before the security manager is installed since that needs a permission */
+    private static final ProtectionDomain SELF = ESPolicy.class.getProtectionDomain();
 
     public ESPolicy(PermissionCollection dynamic, Map<String,Policy> plugins, boolean filterBadDefaults) {
-        this.template = Security.readPolicy(getClass().getResource(POLICY_RESOURCE), JarHell.parseClassPath());
+        this(dynamic, plugins, filterBadDefaults, 0, null);
+    }
+
+    /**
+     * @param decisionCacheSize maximum number of decisions to remember, 0 to evaluate every check
+     * @param checkStats where to count checks, null to not count them
+     */
+    public ESPolicy(PermissionCollection dynamic, Map<String,Policy> plugins, boolean filterBadDefaults, int decisionCacheSize,
+                    SecurityCheckStats checkStats) {
+        this.template = Security.readPolicy(getClass().getResource(POLICY_RESOURCE), JarHellCache.classPath());
         this.untrusted = Security.readPolicy(getClass().getResource(UNTRUSTED_RESOURCE), new URL[0]);
         if (filterBadDefaults) {
             this.system = new ESPolicy.SystemPolicy(Policy.getPolicy());
@@ -43,6 +67,26 @@ final class ESPolicy extends Policy {
         }
         this.dynamic = dynamic;
         this.plugins = plugins;
+        if (decisionCacheSize > 0) {
+            this.decisions = CacheBuilder.newBuilder()
+                    .maximumSize(decisionCacheSize)
+                    .concurrencyLevel(16)
+                    .recordStats()
+                    .build();
+            // exercise the cache once, so its classes are loaded before the security manager is installed:
+            // otherwise the first check would recurse into loading them
+            DecisionKey warmup = new DecisionKey(SELF, new RuntimePermission("warmup"));
+            decisions.put(warmup, Boolean.FALSE);
+            decisions.getIfPresent(warmup);
+            decisions.invalidateAll();
+        } else {
+            this.decisions = null;
+        }
+        this.checkStats = checkStats;
+        if (checkStats != null) {
+            // same as above, the sampling randomness is initialized lazily
+            checkStats.sample();
+        }
     }
 
     @Override @SuppressForbidden(reason = "fast equals check is desired")
@@ -53,6 +97,46 @@ final class ESPolicy extends Policy {
             return false;
         }
 
+        // plugin policies are parsed lazily, from within a permission check: grant our own code
+        // what the parser needs here, so that check doesn't recurse into the decision cache
+        if (domain == SELF && PluginPolicy.LOADER_PERMISSIONS.implies(permission)) {
+            return true;
+        }
+
+        if (checkStats == null) {
+            return check(domain, codeSource, permission);
+        }
+        URL location = codeSource.getLocation();
+        SecurityCheckStats.Counters counters = checkStats.counters(location == null ? null : location.getFile());
+        if (checkStats.sample()) {
+            long start = System.nanoTime();
+            boolean granted = check(domain, codeSource, permission);
+            checkStats.record(counters, granted, System.nanoTime() - start);
+            return granted;
+        }
+        boolean granted = check(domain, codeSource, permission);
+        checkStats.record(counters, granted, -1);
+        return granted;
+    }
+
+    /** answers a check from the decision cache, or decides it */
+    private boolean check(ProtectionDomain domain, CodeSource codeSource, Permission permission) {
+        if (decisions == null) {
+            return decide(domain, codeSource, permission);
+        }
+        // the policies never change once installed, so neither does the decision for the same domain and permission
+        DecisionKey key = new DecisionKey(domain, permission);
+        Boolean cached = decisions.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        boolean decision = decide(domain, codeSource, permission);
+        decisions.put(key, decision);
+        return decision;
+    }
+
+    @SuppressForbidden(reason = "fast equals check is desired")
+    private boolean decide(ProtectionDomain domain, CodeSource codeSource, Permission permission) {
         URL location = codeSource.getLocation();
         // location can be null... ??? nobody knows
         // https://bugs.openjdk.java.net/browse/JDK-8129972
@@ -73,21 +157,113 @@ final class ESPolicy extends Policy {
         return template.implies(domain, permission) || dynamic.implies(permission) || system.implies(domain, permission);
     }
 
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("decision_cache");
+        builder.field("enabled", decisions != null);
+        if (decisions != null) {
+            CacheStats stats = decisions.stats();
+            builder.field("size", decisions.size());
+            builder.field("hits", stats.hitCount());
+            builder.field("misses", stats.missCount());
+            builder.field("evictions", stats.evictionCount());
+            builder.field("hit_rate", stats.hitRate());
+        }
+        builder.endObject();
+        if (checkStats != null) {
+            checkStats.toXContent(builder, params);
+        }
+        return builder;
+    }
+
     @Override
     public PermissionCollection getPermissions(CodeSource codesource) {
         // code should not rely on this method, or at least use it correctly:
         // https://bugs.openjdk.java.net/browse/JDK-8014008
         // return them a new empty permissions object so jvisualvm etc work
-        for (StackTraceElement element : Thread.currentThread().getStackTrace()) {
-            if ("sun.rmi.server.LoaderHandler".equals(element.getClassName()) &&
-                    "loadClass".equals(element.getMethodName())) {
-                return new Permissions();
-            }
+        if (calledFromRmiLoader()) {
+            return new Permissions();
         }
         // return UNSUPPORTED_EMPTY_COLLECTION since it is safe.
         return super.getPermissions(codesource);
     }
 
+    /** class of the rmi class loader, that needs a mutable (if empty) collection from {@link #getPermissions(CodeSource)} */
+    static final String RMI_LOADER_HANDLER = "sun.rmi.server.LoaderHandler";
+
+    /**
+     * Returns true if {@link #RMI_LOADER_HANDLER} is on the current stack.
+     * <p>
+     * Only looks at the classes on the stack, materializing a full stack trace (with method names
+     * and line numbers) costs orders of magnitude more, and monitoring agents call this a lot.
+     * Any frame of the handler counts, not just {@code loadClass}: it only ever asks for
+     * permissions to add its own to them, and an empty collection grants nothing either way.
+     */
+    static boolean calledFromRmiLoader() {
+        for (Class<?> clazz : CALLER_CLASSES.getClassContext()) {
+            if (RMI_LOADER_HANDLER.equals(clazz.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** exposes {@link SecurityManager#getClassContext()}, it is never installed */
+    private static final class CallerClasses extends SecurityManager {
+        @Override
+        protected Class<?>[] getClassContext() {
+            return super.getClassContext();
+        }
+    }
+
+    // created with the class: once our security manager is installed, creating one needs a permission
+    private static final CallerClasses CALLER_CLASSES = new CallerClasses();
+
+    /**
+     * Key of a cached decision: the domain (by identity, like the jdk's own domain caches) and
+     * the requested permission's class, name and actions.
+     * <p>
+     * The domain and the class are only weakly referenced: script classloaders come and go, and a
+     * cached decision must not keep them (and every class they loaded) alive. Once collected, a key
+     * matches nothing any more and is evicted like any other unused entry.
+     */
+    static final class DecisionKey {
+        final WeakReference<ProtectionDomain> domain;
+        final WeakReference<Class<?>> type;
+        final String name;
+        final String actions;
+        final int hashCode;
+
+        DecisionKey(ProtectionDomain domain, Permission permission) {
+            this.domain = new WeakReference<>(domain);
+            this.type = new WeakReference<Class<?>>(permission.getClass());
+            this.name = permission.getName();
+            this.actions = permission.getActions();
+            this.hashCode = 31 * (31 * (31 * System.identityHashCode(domain) + permission.getClass().hashCode()) + Objects.hashCode(name))
+                    + Objects.hashCode(actions);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || obj.getClass() != DecisionKey.class) {
+                return false;
+            }
+            DecisionKey other = (DecisionKey) obj;
+            ProtectionDomain domain = this.domain.get();
+            Class<?> type = this.type.get();
+            return domain != null && type != null && domain == other.domain.get() && type == other.type.get()
+                    && Objects.equals(name, other.name) && Objects.equals(actions, other.actions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
     // TODO: remove this hack when insecure defaults are removed from java
 
     /**
@@ -0,0 +1,174 @@
+package cn.com.turing;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the {@code diagnose} command reports about the host, without starting a node: whether
+ * memory can be locked and syscall filters installed, resource limits, and the kernel's memory,
+ * NUMA and cgroup settings. Settings known to hurt a node are listed as warnings at the end. Given
+ * the pid of a running node, also where its memory goes (see {@link MemoryBreakdown}).
+ * <p>
+ * Everything but the native probes comes from procfs and sysfs, so most of it is linux only;
+ * whatever is unavailable is left out.
+ */
+final class HostDiagnostics implements ToXContent {
+
+    /** the minimum the node needs for its mmapped index files */
+    static final long MIN_MAX_MAP_COUNT = 262144;
+    /** below this, merges of large indices run out of file descriptors */
+    static final long MIN_OPEN_FILES = 65536;
+
+
+    /** the node's settings, for the placement it would get */
+    private final Settings settings;
+    /** the memory of a running node, null if none */
+    private final MemoryBreakdown memory;
+
+    HostDiagnostics(Settings settings, MemoryBreakdown memory) {
+        this.settings = settings;
+        this.memory = memory;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        List<String> warnings = new ArrayList<>();
+        builder.startObject("os");
+        builder.field("name", Constants.OS_NAME);
+        builder.field("arch", Constants.OS_ARCH);
+        builder.field("version", Constants.OS_VERSION);
+        builder.field("available_processors", Runtime.getRuntime().availableProcessors());
+        builder.endObject();
+        boolean lockable = memoryLock(builder, warnings);
+        seccomp(builder, warnings);
+        limits(builder, warnings);
+        vm(builder, warnings, lockable);
+        numa(builder, warnings);
+        cgroup(builder, warnings);
+        if (memory != null) {
+            builder.startObject("memory_breakdown");
+            memory.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+        }
+        builder.array("warnings", warnings.toArray(new String[warnings.size()]));
+        return builder;
+    }
+
+    /** returns whether memory can be locked */
+    private static boolean memoryLock(XContentBuilder builder, List<String> warnings) throws IOException {
+        builder.startObject("memory_lock");
+        String error = Natives.probeMlockall();
+        builder.field("would_succeed", error == null);
+        if (error != null) {
+            builder.field("error", error);
+            warnings.add("memory cannot be locked (" + error + "), parts of the heap may be swapped out");
+        }
+        rlimit(builder, "rlimit_memlock", JNACLibrary.RLIMIT_MEMLOCK);
+        builder.endObject();
+        return error == null;
+    }
+
+    private static void seccomp(XContentBuilder builder, List<String> warnings) throws IOException {
+        builder.startObject("seccomp");
+        String error = Natives.probeSeccomp();
+        builder.field("supported", error == null);
+        if (error != null) {
+            builder.field("error", error);
+            warnings.add("syscall filters cannot be installed (" + error + ")");
+        }
+        builder.endObject();
+    }
+
+    private static void limits(XContentBuilder builder, List<String> warnings) throws IOException {
+        builder.startObject("limits");
+        long[] openFiles = rlimit(builder, "open_files", JNACLibrary.RLIMIT_NOFILE);
+        if (openFiles != null && openFiles[0] != JNACLibrary.RLIM_INFINITY && openFiles[0] < MIN_OPEN_FILES) {
+            warnings.add("open files limit [" + openFiles[0] + "] is below [" + MIN_OPEN_FILES + "]");
+        }
+        rlimit(builder, "processes", JNACLibrary.RLIMIT_NPROC);
+        rlimit(builder, "address_space", JNACLibrary.RLIMIT_AS);
+        builder.endObject();
+    }
+
+    /** renders the soft and hard limit of {@code resource} as {@code name} and returns them, or null if unknown */
+    private static long[] rlimit(XContentBuilder builder, String name, int resource) throws IOException {
+        long[] limit = Natives.getrlimit(resource);
+        if (limit != null) {
+            builder.startObject(name);
+            builder.field("soft", JNANatives.rlimitToString(limit[0]));
+            builder.field("hard", JNANatives.rlimitToString(limit[1]));
+            builder.endObject();
+        }
+        return limit;
+    }
+
+    private static void vm(XContentBuilder builder, List<String> warnings, boolean lockable) throws IOException {
+        String thpEnabled = TransparentHugePages.systemMode();
+        if (thpEnabled != null) {
+            builder.startObject("transparent_huge_pages");
+            builder.field("enabled", thpEnabled);
+            builder.field("defrag", TransparentHugePages.systemDefrag());
+            builder.endObject();
+            if ("always".equals(thpEnabled)) {
+                warnings.add("transparent huge pages are enabled system wide, expect compaction stalls");
+            }
+        }
+        Long maxMapCount = ProcFiles.number("/proc/sys/vm/max_map_count");
+        Long swappiness = ProcFiles.number("/proc/sys/vm/swappiness");
+        if (maxMapCount != null || swappiness != null) {
+            builder.startObject("vm");
+            if (maxMapCount != null) {
+                builder.field("max_map_count", maxMapCount);
+                if (maxMapCount < MIN_MAX_MAP_COUNT) {
+                    warnings.add("vm.max_map_count [" + maxMapCount + "] is below [" + MIN_MAX_MAP_COUNT + "]");
+                }
+            }
+            if (swappiness != null) {
+                builder.field("swappiness", swappiness);
+                if (swappiness > 1 && lockable == false) {
+                    warnings.add("vm.swappiness is [" + swappiness + "] and memory cannot be locked");
+                }
+            }
+            builder.endObject();
+        }
+    }
+
+    /** the numa nodes, with the placement configured in {@code settings} */
+    private void numa(XContentBuilder builder, List<String> warnings) throws IOException {
+        NumaTopology topology = NumaTopology.read();
+        if (topology.nodes.isEmpty()) {
+            return;
+        }
+        NumaPlacement placement;
+        try {
+            placement = NumaPlacement.fromSettings(settings, topology, ThreadPlacement.fromSettings(settings));
+        } catch (IllegalArgumentException e) {
+            warnings.add("invalid thread placement: " + e.getMessage());
+            placement = NumaPlacement.fromSettings(Settings.EMPTY, topology, new ThreadPlacement());
+        }
+        builder.startObject("numa");
+        placement.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+    }
+
+    private static void cgroup(XContentBuilder builder, List<String> warnings) throws IOException {
+        Cgroup cgroup = Cgroup.read();
+        if (cgroup.version == 0) {
+            return;
+        }
+        builder.startObject("cgroup");
+        cgroup.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        int available = Runtime.getRuntime().availableProcessors();
+        if (cgroup.processors(available) < available) {
+            warnings.add("the jvm sees [" + available + "] processors but the cgroup allows [" + cgroup.processors(available)
+                    + "], thread pools are sized for the cgroup unless [processors] is set");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Access pattern hints ({@code madvise}) for the memory mapped index files on the data paths. The
+ * kernel reads ahead around every page fault of a mapping; for files searched at random, like the
+ * terms dictionary, most of that is read for nothing, which hurts on spinning and network attached
+ * disks.
+ * <p>
+ * Only mapped files can be advised. The default store maps just the terms dictionary, doc values
+ * and norms ({@code tim}, {@code dvd} and {@code nvd}) and reads all other files, postings and
+ * compound files included, through NIO; advice for those only applies with
+ * {@code index.store.type: mmapfs}.
+ * <p>
+ * Index files are mapped and unmapped as segments come and go, so like {@link TransparentHugePages}
+ * their mappings are looked up in {@code /proc/self/maps} periodically and new ones advised, by
+ * context:
+ * <ul>
+ *   <li>search: the first mapping of a file is the searcher's, advised by file extension with
+ *       {@value Bootstrap#INDEX_FILE_ADVICE_SEARCH_SETTING_PREFIX}{@code <extension>}. Segment
+ *       readers are pooled, so merges read through this mapping too: {@code random} takes their
+ *       readahead away, which is why no extension is advised unless set.</li>
+ *   <li>copy: further mappings of a file already mapped are opened by peer recoveries and
+ *       snapshots, which read it front to back once. They get
+ *       {@value Bootstrap#INDEX_FILE_ADVICE_COPY_SETTING}, {@code sequential} unless set.</li>
+ * </ul>
+ * Lucene maps files larger than a chunk in several mappings at different offsets, so mappings are
+ * told apart by file and offset.
+ */
+final class IndexFileAdvice implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(IndexFileAdvice.class);
+
+    enum Advice {
+        NORMAL(JNACLibrary.MADV_NORMAL),
+        RANDOM(JNACLibrary.MADV_RANDOM),
+        SEQUENTIAL(JNACLibrary.MADV_SEQUENTIAL),
+        WILLNEED(JNACLibrary.MADV_WILLNEED);
+
+        final int madvise;
+
+        Advice(int madvise) {
+            this.madvise = madvise;
+        }
+
+        static Advice parse(String setting, String value) {
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("[" + setting + "] must be one of [normal, random, sequential, willneed], got ["
+                        + value + "]", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** advice by extension for the searcher's mappings, extensions not in here are left alone */
+    final Map<String,Advice> search;
+    /** advice for mappings of files already mapped */
+    final Advice copy;
+    final TimeValue refreshInterval;
+
+    /** start to end address of the mappings already advised, only touched by one refresh at a time */
+    private Map<Long,Long> advised = new HashMap<>();
+    /** file and offset of the mappings advised for search, only touched by one refresh at a time */
+    private Map<Long,String> searched = new HashMap<>();
+
+    // advised mappings and their bytes by context and advice, written by one refresh at a time
+    private final AtomicLongArray searchMappings = new AtomicLongArray(Advice.values().length);
+    private final AtomicLongArray searchBytes = new AtomicLongArray(Advice.values().length);
+    private volatile long copyMappings;
+    private volatile long copyBytes;
+    private volatile long failures;
+
+    IndexFileAdvice(Map<String,Advice> search, Advice copy, TimeValue refreshInterval) {
+        this.search = Collections.unmodifiableMap(search);
+        this.copy = copy;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /** null if disabled */
+    static IndexFileAdvice fromSettings(Settings settings) {
+        if (settings.getAsBoolean(Bootstrap.INDEX_FILE_ADVICE_ENABLED_SETTING, false) == false) {
+            return null;
+        }
+        Map<String,Advice> search = new HashMap<>();
+        for (Map.Entry<String,String> entry : settings.getByPrefix(Bootstrap.INDEX_FILE_ADVICE_SEARCH_SETTING_PREFIX).getAsMap().entrySet()) {
+            search.put(entry.getKey(), Advice.parse(Bootstrap.INDEX_FILE_ADVICE_SEARCH_SETTING_PREFIX + entry.getKey(), entry.getValue()));
+        }
+        Advice copy = Advice.parse(Bootstrap.INDEX_FILE_ADVICE_COPY_SETTING,
+                settings.get(Bootstrap.INDEX_FILE_ADVICE_COPY_SETTING, Advice.SEQUENTIAL.toString()));
+        return new IndexFileAdvice(search, copy,
+                settings.getAsTime(Bootstrap.INDEX_FILE_ADVICE_REFRESH_INTERVAL_SETTING, TimeValue.timeValueSeconds(10)));
+    }
+
+    /** the extension of {@code file}, without the dot */
+    static String extension(String file) {
+        int slash = file.lastIndexOf('/');
+        int dot = file.lastIndexOf('.');
+        return dot > slash ? file.substring(dot + 1) : "";
+    }
+
+    /** advises the mappings of files below {@code dataPaths} that were not advised yet */
+    void adviseIndexFiles(Path[] dataPaths) {
+        List<ProcMaps.Mapping> mappings = ProcMaps.filesBelow(dataPaths);
+        Map<Long,Long> current = new HashMap<>();
+        Map<Long,String> currentSearched = new HashMap<>();
+        // file and offset of the searcher's mappings that are still there
+        Set<String> stillSearched = new HashSet<>();
+        for (ProcMaps.Mapping mapping : mappings) {
+            Long end = advised.get(mapping.start);
+            if (end != null && end == mapping.end && searched.containsKey(mapping.start)) {
+                stillSearched.add(searched.get(mapping.start));
+            }
+        }
+        for (ProcMaps.Mapping mapping : mappings) {
+            Long end = advised.get(mapping.start);
+            String key = mapping.path + '@' + mapping.offset;
+            if (end != null && end == mapping.end) {
+                // advised before
+                current.put(mapping.start, mapping.end);
+                if (searched.containsKey(mapping.start)) {
+                    currentSearched.put(mapping.start, key);
+                }
+                continue;
+            }
+            Advice advice;
+            boolean forSearch = stillSearched.add(key);
+            if (forSearch) {
+                advice = search.get(extension(mapping.path));
+                currentSearched.put(mapping.start, key);
+            } else {
+                advice = copy;
+            }
+            if (advice != null) {
+                String error = Natives.tryMadvise(mapping.start, mapping.length(), advice.madvise);
+                if (error != null) {
+                    // most likely unmapped in the meantime
+                    failures++;
+                    logger.trace("unable to advise [{}] for [{}]: {}", advice, mapping.path, error);
+                    continue;
+                }
+                if (forSearch) {
+                    searchMappings.incrementAndGet(advice.ordinal());
+                    searchBytes.addAndGet(advice.ordinal(), mapping.length());
+                } else {
+                    copyMappings++;
+                    copyBytes += mapping.length();
+                }
+            }
+            current.put(mapping.start, mapping.end);
+        }
+        advised = current;
+        searched = currentSearched;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("refresh_interval", refreshInterval.toString());
+        builder.startObject("search");
+        Map<Advice,Set<String>> extensions = new EnumMap<>(Advice.class);
+        for (Map.Entry<String,Advice> entry : search.entrySet()) {
+            if (extensions.containsKey(entry.getValue()) == false) {
+                extensions.put(entry.getValue(), new TreeSet<String>());
+            }
+            extensions.get(entry.getValue()).add(entry.getKey());
+        }
+        for (Map.Entry<Advice,Set<String>> entry : extensions.entrySet()) {
+            builder.startObject(entry.getKey().toString());
+            builder.field("extensions", entry.getValue());
+            builder.field("advised_mappings", searchMappings.get(entry.getKey().ordinal()));
+            builder.field("advised_in_bytes", searchBytes.get(entry.getKey().ordinal()));
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.startObject("copy");
+        builder.field("advice", copy.toString());
+        builder.field("advised_mappings", copyMappings);
+        builder.field("advised_in_bytes", copyBytes);
+        builder.endObject();
+        builder.field("failures", failures);
+        return builder;
+    }
+}
@@ -2,6 +2,7 @@ package cn.com.turing;
 
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 
 import org.apache.lucene.util.Constants;
@@ -19,9 +20,25 @@ final class JNACLibrary {
     private static final ESLogger logger = Loggers.getLogger(JNACLibrary.class);
 
     public static final int MCL_CURRENT = 1;
+    public static final int MCL_FUTURE = 2;
+    /** linux 4.4+: lock pages as they are faulted in, rather than all at once */
+    public static final int MCL_ONFAULT = 4;
     public static final int ENOMEM = 12;
+    public static final int EINVAL = 22;
     public static final int RLIMIT_MEMLOCK = Constants.MAC_OS_X ? 6 : 8;
     public static final long RLIM_INFINITY = Constants.MAC_OS_X ? 9223372036854775807L : -1L;
+    /** madvise access patterns, the same on linux and mac */
+    public static final int MADV_NORMAL = 0;
+    public static final int MADV_RANDOM = 1;
+    public static final int MADV_SEQUENTIAL = 2;
+    public static final int MADV_WILLNEED = 3;
+    public static final int MADV_DONTNEED = 4;
+    /** linux 2.6.38+: back the range with transparent huge pages, or keep them out of it */
+    public static final int MADV_HUGEPAGE = 14;
+    public static final int MADV_NOHUGEPAGE = 15;
+    public static final int RLIMIT_NOFILE = Constants.MAC_OS_X ? 8 : 7;
+    public static final int RLIMIT_NPROC = Constants.MAC_OS_X ? 7 : 6;
+    public static final int RLIMIT_AS = Constants.MAC_OS_X ? 5 : 9;
 
     static {
         try {
@@ -33,6 +50,12 @@ final class JNACLibrary {
 
     static native int mlockall(int flags);
 
+    static native int munlockall();
+
+    static native int mlock(Pointer addr, NativeLong len);
+
+    static native int madvise(Pointer addr, NativeLong len, int advice);
+
     static native int geteuid();
 
     /** corresponds to struct rlimit */
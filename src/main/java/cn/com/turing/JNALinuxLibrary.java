@@ -0,0 +1,207 @@
+package cn.com.turing;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Linux system calls that libc may not wrap (older glibc lacks {@code mlock2}, for example), made
+ * through {@code syscall(2)} like {@link Seccomp} does. The library is mapped as an interface,
+ * so a missing function only fails when it is called.
+ */
+final class JNALinuxLibrary {
+
+    private static final ESLogger logger = Loggers.getLogger(JNALinuxLibrary.class);
+
+    /** no instantiation */
+    private JNALinuxLibrary() {}
+
+    static interface LinuxLibrary extends Library {
+        NativeLong syscall(NativeLong number, Object... args);
+
+        /** maps to sched_setaffinity(2), pid 0 is the calling thread */
+        int sched_setaffinity(int pid, NativeLong cpusetsize, long[] mask);
+
+        /** maps to sched_getaffinity(2) */
+        int sched_getaffinity(int pid, NativeLong cpusetsize, long[] mask);
+
+        /** maps to open(2) */
+        int open(String path, int flags);
+
+        /** maps to close(2) */
+        int close(int fd);
+
+        /** maps to posix_fadvise(2), returns the error number instead of setting errno */
+        int posix_fadvise(int fd, NativeLong offset, NativeLong len, int advice);
+    }
+
+    // null if unavailable or something goes wrong.
+    private static final JNALinuxLibrary.LinuxLibrary linux_libc;
+
+    static {
+        JNALinuxLibrary.LinuxLibrary lib = null;
+        if (Constants.LINUX) {
+            try {
+                lib = (JNALinuxLibrary.LinuxLibrary) Native.loadLibrary("c", JNALinuxLibrary.LinuxLibrary.class);
+            } catch (UnsatisfiedLinkError e) {
+                logger.warn("unable to link C library. native methods (linux syscalls) will be disabled.", e);
+            }
+        }
+        linux_libc = lib;
+    }
+
+    /** lock pages as they are faulted in */
+    static final int MLOCK_ONFAULT = 1;
+
+    // numa memory policies
+    static final int MPOL_DEFAULT = 0;
+    static final int MPOL_PREFERRED = 1;
+    static final int MPOL_BIND = 2;
+    static final int MPOL_INTERLEAVE = 3;
+
+    // io priority classes, see ioprio_set(2)
+    static final int IOPRIO_CLASS_RT = 1;
+    static final int IOPRIO_CLASS_BE = 2;
+    static final int IOPRIO_CLASS_IDLE = 3;
+    static final int IOPRIO_CLASS_SHIFT = 13;
+    static final int IOPRIO_WHO_PROCESS = 1;
+
+    // posix_fadvise(2) advice
+    static final int POSIX_FADV_NORMAL = 0;
+    static final int POSIX_FADV_RANDOM = 1;
+    static final int POSIX_FADV_SEQUENTIAL = 2;
+    static final int POSIX_FADV_WILLNEED = 3;
+    static final int POSIX_FADV_DONTNEED = 4;
+    static final int O_RDONLY = 0;
+
+    /** cpu masks are passed as this many longs, enough for 1024 cpus like glibc's cpu_set_t */
+    static final int CPU_MASK_LONGS = 16;
+
+    /** syscall numbers, they differ per architecture */
+    static final class Syscalls {
+        final int mlock2;
+        final int mbind;
+        final int setMempolicy;
+        final int ioprioSet;
+
+        Syscalls(int mlock2, int mbind, int setMempolicy, int ioprioSet) {
+            this.mlock2 = mlock2;
+            this.mbind = mbind;
+            this.setMempolicy = setMempolicy;
+            this.ioprioSet = ioprioSet;
+        }
+    }
+
+    /** supported architectures keyed by os.arch */
+    static final Map<String, JNALinuxLibrary.Syscalls> ARCHITECTURES;
+    static {
+        Map<String, JNALinuxLibrary.Syscalls> m = new HashMap<>();
+        m.put("amd64",   new JNALinuxLibrary.Syscalls(325, 237, 238, 251));
+        m.put("i386",    new JNALinuxLibrary.Syscalls(376, 274, 276, 289));
+        m.put("aarch64", new JNALinuxLibrary.Syscalls(284, 235, 237, 30));
+        ARCHITECTURES = Collections.unmodifiableMap(m);
+    }
+
+    /** returns true if the library was linked, loading it if that didn't happen yet */
+    static boolean isAvailable() {
+        return linux_libc != null;
+    }
+
+    /** the syscall numbers of this architecture, throws if syscalls can't be made */
+    private static JNALinuxLibrary.Syscalls syscalls() {
+        if (linux_libc == null) {
+            throw new UnsupportedOperationException("linux syscalls unavailable on '" + Constants.OS_NAME + "'");
+        }
+        JNALinuxLibrary.Syscalls syscalls = ARCHITECTURES.get(Constants.OS_ARCH);
+        if (syscalls == null) {
+            throw new UnsupportedOperationException("linux syscalls unavailable: '" + Constants.OS_ARCH + "' architecture unsupported");
+        }
+        return syscalls;
+    }
+
+    /** maps to mlock2(2), since linux 4.4. returns 0 on success, -1 with errno set otherwise */
+    static int mlock2(long address, long length, int flags) {
+        return (int) linux_libc.syscall(new NativeLong(syscalls().mlock2),
+                new NativeLong(address), new NativeLong(length), flags).longValue();
+    }
+
+    /**
+     * maps to set_mempolicy(2), for the calling thread and the threads it creates afterwards.
+     * {@code nodes} is a bit mask of numa nodes.
+     */
+    static int setMempolicy(int mode, long[] nodes) {
+        return (int) linux_libc.syscall(new NativeLong(syscalls().setMempolicy), mode, nodes,
+                new NativeLong(maxNode(nodes))).longValue();
+    }
+
+    /** maps to mbind(2), the policy of an address range no matter which thread touches it first */
+    static int mbind(long address, long length, int mode, long[] nodes) {
+        return (int) linux_libc.syscall(new NativeLong(syscalls().mbind), new NativeLong(address), new NativeLong(length), mode,
+                nodes, new NativeLong(maxNode(nodes)), 0).longValue();
+    }
+
+    /** the kernel reads one bit less than maxnode, so pass one more than the mask holds */
+    private static long maxNode(long[] nodes) {
+        return nodes.length * 64L + 1;
+    }
+
+    /**
+     * maps to ioprio_set(IOPRIO_WHO_PROCESS, 0, ...): the io priority of the calling thread, built
+     * by {@link #ioPriority}
+     */
+    static int setIoPriority(int ioPriority) {
+        return (int) linux_libc.syscall(new NativeLong(syscalls().ioprioSet), IOPRIO_WHO_PROCESS, 0, ioPriority).longValue();
+    }
+
+    /** an io priority of {@code ioClass} with {@code level} 0 (highest) to 7 */
+    static int ioPriority(int ioClass, int level) {
+        return ioClass << IOPRIO_CLASS_SHIFT | level;
+    }
+
+    /** maps to sched_setaffinity(0, ...): pins the calling thread to {@code cpus} */
+    static int setAffinity(long[] cpus) {
+        if (linux_libc == null) {
+            throw new UnsupportedOperationException("sched_setaffinity unavailable on '" + Constants.OS_NAME + "'");
+        }
+        long[] mask = Arrays.copyOf(cpus, CPU_MASK_LONGS);
+        return linux_libc.sched_setaffinity(0, new NativeLong(mask.length * 8L), mask);
+    }
+
+    /**
+     * maps to posix_fadvise(2) for the whole of {@code file}, through a descriptor of its own: so
+     * only the page cache advice ({@code WILLNEED}, {@code DONTNEED}) reaches other readers of the
+     * file. returns 0 on success, the error number otherwise
+     */
+    static int fadvise(String file, int advice) {
+        if (linux_libc == null) {
+            throw new UnsupportedOperationException("posix_fadvise unavailable on '" + Constants.OS_NAME + "'");
+        }
+        int fd = linux_libc.open(file, O_RDONLY);
+        if (fd < 0) {
+            return Native.getLastError();
+        }
+        try {
+            return linux_libc.posix_fadvise(fd, new NativeLong(0), new NativeLong(0), advice);
+        } finally {
+            linux_libc.close(fd);
+        }
+    }
+
+    /** the cpus the calling thread may run on, or null with errno set */
+    static long[] getAffinity() {
+        if (linux_libc == null) {
+            throw new UnsupportedOperationException("sched_getaffinity unavailable on '" + Constants.OS_NAME + "'");
+        }
+        long[] mask = new long[CPU_MASK_LONGS];
+        return linux_libc.sched_getaffinity(0, new NativeLong(mask.length * 8L), mask) == 0 ? mask : null;
+    }
+}
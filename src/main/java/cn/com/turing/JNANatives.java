@@ -1,6 +1,7 @@
 package cn.com.turing;
 
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 
 import org.apache.lucene.util.Constants;
@@ -29,44 +30,127 @@ class JNANatives {
     // otherwise they are only inherited for new threads (ES app threads)
     static boolean LOCAL_SECCOMP_ALL = false;
 
-    static void tryMlockall() {
-        int errno = Integer.MIN_VALUE;
-        String errMsg = null;
-        boolean rlimitSuccess = false;
-        long softLimit = 0;
-        long hardLimit = 0;
+    /** calls {@code mlockall(flags)}, flags are {@link JNACLibrary#MCL_CURRENT} and friends */
+    static void tryMlockall(int flags) {
+        try {
+            if (JNACLibrary.mlockall(flags) == 0) {
+                LOCAL_MLOCKALL = true;
+                return;
+            }
+            memoryLockFailed(Native.getLastError());
+        } catch (UnsatisfiedLinkError e) {
+            // this will have already been logged by CLibrary, no need to repeat it
+        }
+    }
 
+    /**
+     * Locks {@code length} bytes at {@code address}, with {@code mlock2(MLOCK_ONFAULT)} if
+     * {@code onFault} (pages are locked as they are touched), with {@code mlock} otherwise.
+     */
+    static void tryMlock(long address, long length, boolean onFault) {
         try {
-            int result = JNACLibrary.mlockall(JNACLibrary.MCL_CURRENT);
+            int result;
+            if (onFault) {
+                result = JNALinuxLibrary.mlock2(address, length, JNALinuxLibrary.MLOCK_ONFAULT);
+            } else {
+                result = JNACLibrary.mlock(new Pointer(address), new NativeLong(length));
+            }
             if (result == 0) {
                 LOCAL_MLOCKALL = true;
                 return;
             }
+            memoryLockFailed(Native.getLastError());
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            logger.warn("Unable to lock JVM Memory: " + e.getMessage());
+        }
+    }
 
-            errno = Native.getLastError();
-            errMsg = JNACLibrary.strerror(errno);
-            if (Constants.LINUX || Constants.MAC_OS_X) {
-                // we only know RLIMIT_MEMLOCK for these two at the moment.
-                JNACLibrary.Rlimit rlimit = new JNACLibrary.Rlimit();
-                if (JNACLibrary.getrlimit(JNACLibrary.RLIMIT_MEMLOCK, rlimit) == 0) {
-                    rlimitSuccess = true;
-                    softLimit = rlimit.rlim_cur.longValue();
-                    hardLimit = rlimit.rlim_max.longValue();
-                } else {
-                    logger.warn("Unable to retrieve resource limits: " + JNACLibrary.strerror(Native.getLastError()));
-                }
+    /** calls {@code madvise(address, length, advice)}, returns null on success or the error */
+    static String tryMadvise(long address, long length, int advice) {
+        try {
+            if (JNACLibrary.madvise(new Pointer(address), new NativeLong(length), advice) == 0) {
+                return null;
             }
+            return JNACLibrary.strerror(Native.getLastError());
         } catch (UnsatisfiedLinkError e) {
-            // this will have already been logged by CLibrary, no need to repeat it
-            return;
+            return "unable to link C library";
         }
+    }
 
-        // mlockall failed for some reason
-        logger.warn("Unable to lock JVM Memory: error=" + errno + ",reason=" + errMsg);
+    /** advises the kernel about the page cache of {@code file}, returns null on success or the error */
+    static String tryFadvise(String file, int advice) {
+        try {
+            int error = JNALinuxLibrary.fadvise(file, advice);
+            return error == 0 ? null : JNACLibrary.strerror(error);
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            return e.getMessage();
+        }
+    }
+
+    /** sets the numa memory policy of the calling thread (and the threads it creates), returns null on success or the error */
+    static String trySetMempolicy(int mode, long[] nodes) {
+        try {
+            if (JNALinuxLibrary.setMempolicy(mode, nodes) == 0) {
+                return null;
+            }
+            return JNACLibrary.strerror(Native.getLastError());
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            return e.getMessage();
+        }
+    }
+
+    /** sets the numa memory policy of an address range, returns null on success or the error */
+    static String tryMbind(long address, long length, int mode, long[] nodes) {
+        try {
+            if (JNALinuxLibrary.mbind(address, length, mode, nodes) == 0) {
+                return null;
+            }
+            return JNACLibrary.strerror(Native.getLastError());
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            return e.getMessage();
+        }
+    }
+
+    /** pins the calling thread to {@code cpus}, returns null on success or the error */
+    static String trySetAffinity(long[] cpus) {
+        try {
+            if (JNALinuxLibrary.setAffinity(cpus) == 0) {
+                return null;
+            }
+            return JNACLibrary.strerror(Native.getLastError());
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            return e.getMessage();
+        }
+    }
+
+    /** sets the io priority of the calling thread, returns null on success or the error */
+    static String trySetIoPriority(int ioPriority) {
+        try {
+            if (JNALinuxLibrary.setIoPriority(ioPriority) == 0) {
+                return null;
+            }
+            return JNACLibrary.strerror(Native.getLastError());
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            return e.getMessage();
+        }
+    }
+
+    /** the cpus the calling thread may run on, or null if unknown */
+    static long[] getAffinity() {
+        try {
+            return JNALinuxLibrary.getAffinity();
+        } catch (UnsatisfiedLinkError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static void memoryLockFailed(int errno) {
+        logger.warn("Unable to lock JVM Memory: error=" + errno + ",reason=" + JNACLibrary.strerror(errno));
         logger.warn("This can result in part of the JVM being swapped out.");
         if (errno == JNACLibrary.ENOMEM) {
-            if (rlimitSuccess) {
-                logger.warn("Increase RLIMIT_MEMLOCK, soft limit: " + rlimitToString(softLimit) + ", hard limit: " + rlimitToString(hardLimit));
+            long[] rlimit = getrlimit(JNACLibrary.RLIMIT_MEMLOCK);
+            if (rlimit != null) {
+                logger.warn("Increase RLIMIT_MEMLOCK, soft limit: " + rlimitToString(rlimit[0]) + ", hard limit: " + rlimitToString(rlimit[1]));
                 if (Constants.LINUX) {
                     // give specific instructions for the linux case to make it easy
                     String user = System.getProperty("user.name");
@@ -83,13 +167,94 @@ class JNANatives {
         }
     }
 
+    /**
+     * Returns null if the heap could be locked, the error otherwise. This is for diagnostics, so it
+     * must not actually lock the heap: on linux 4.4+ it calls {@code mlockall(MCL_CURRENT|MCL_ONFAULT)},
+     * which passes the same permission and limit checks but only locks the pages already resident,
+     * and unlocks right away. Elsewhere it compares {@code RLIMIT_MEMLOCK} with the max heap size.
+     */
+    static String probeMlockall() {
+        try {
+            if (Constants.LINUX) {
+                if (JNACLibrary.mlockall(JNACLibrary.MCL_CURRENT | JNACLibrary.MCL_ONFAULT) == 0) {
+                    JNACLibrary.munlockall();
+                    return null;
+                }
+                int errno = Native.getLastError();
+                if (errno != JNACLibrary.EINVAL) {
+                    return JNACLibrary.strerror(errno);
+                }
+                // no MCL_ONFAULT before linux 4.4
+            }
+            if (JNACLibrary.geteuid() == 0) {
+                // root isn't held to the limit
+                return null;
+            }
+            long[] limit = getrlimit(JNACLibrary.RLIMIT_MEMLOCK);
+            if (limit == null) {
+                return "unable to retrieve RLIMIT_MEMLOCK";
+            }
+            long maxHeap = Runtime.getRuntime().maxMemory();
+            if (limit[0] != JNACLibrary.RLIM_INFINITY && limit[0] < maxHeap) {
+                return "RLIMIT_MEMLOCK [" + limit[0] + "] is below the max heap size [" + maxHeap + "]";
+            }
+            return null;
+        } catch (UnsatisfiedLinkError e) {
+            return "unable to link C library";
+        }
+    }
+
+    /** Returns the soft and hard limit of {@code resource}, or null if they could not be retrieved */
+    static long[] getrlimit(int resource) {
+        if ((Constants.LINUX || Constants.MAC_OS_X) == false) {
+            // we only know the resource numbers for these two at the moment.
+            return null;
+        }
+        try {
+            JNACLibrary.Rlimit rlimit = new JNACLibrary.Rlimit();
+            if (JNACLibrary.getrlimit(resource, rlimit) != 0) {
+                logger.warn("Unable to retrieve resource limits: " + JNACLibrary.strerror(Native.getLastError()));
+                return null;
+            }
+            return new long[] { rlimit.rlim_cur.longValue(), rlimit.rlim_max.longValue() };
+        } catch (UnsatisfiedLinkError e) {
+            // this will have already been logged by CLibrary, no need to repeat it
+            return null;
+        }
+    }
+
+    /**
+     * Raises the soft limit of {@code resource} to its hard limit. Returns the soft and hard limit
+     * afterwards, or null if they could not be retrieved.
+     */
+    static long[] raiseRlimit(int resource) {
+        long[] current = getrlimit(resource);
+        if (current == null || current[0] == current[1]) {
+            return current;
+        }
+        try {
+            JNACLibrary.Rlimit rlimit = new JNACLibrary.Rlimit();
+            rlimit.rlim_cur.setValue(current[1]);
+            rlimit.rlim_max.setValue(current[1]);
+            if (JNACLibrary.setrlimit(resource, rlimit) != 0) {
+                // e.g. os x caps the open files soft limit at OPEN_MAX, even if the hard limit is unlimited
+                logger.warn("Unable to raise resource limit " + resource + " to " + rlimitToString(current[1]) + ": "
+                        + JNACLibrary.strerror(Native.getLastError()));
+                return current;
+            }
+        } catch (UnsatisfiedLinkError e) {
+            // this will have already been logged by CLibrary, no need to repeat it
+            return current;
+        }
+        return getrlimit(resource);
+    }
+
     static String rlimitToString(long value) {
         assert Constants.LINUX || Constants.MAC_OS_X;
         if (value == JNACLibrary.RLIM_INFINITY) {
             return "unlimited";
         } else {
-            // TODO, on java 8 use Long.toUnsignedString, since thats what it is.
-            return Long.toString(value);
+            return Long.toUnsignedString(value);
         }
     }
 
@@ -173,4 +338,14 @@ class JNANatives {
             logger.warn("unable to install syscall filter: " + t.getMessage());
         }
     }
+
+    /** Returns null if a syscall filter could be installed, the reason why not otherwise */
+    static String probeSeccomp() {
+        try {
+            Seccomp.probe();
+            return null;
+        } catch (Throwable t) {
+            return t.getMessage();
+        }
+    }
 }
@@ -0,0 +1,150 @@
+package cn.com.turing;
+
+import org.elasticsearch.bootstrap.JarHell;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * Skips the jar hell scan when the classpath did not change since it last passed.
+ * <p>
+ * The classpath is fingerprinted from each jar's path, size, modification time and a checksum of
+ * its zip central directory, which lists the same entries jar hell indexes. The central directory
+ * is found through the end of central directory record; a jar where that fails (zip64, or not a
+ * zip at all) is checksummed whole. A classpath with plain directories (e.g. an IDE) is never
+ * cached, since those would need a full walk.
+ */
+final class JarHellCache {
+    /** no instantiation */
+    private JarHellCache() {}
+
+    /** cache entry holding the fingerprint of the last classpath that passed the check */
+    static final String CACHE_KEY = "jar-hell";
+    /** signature of the end of central directory record */
+    static final int END_SIGNATURE = 0x06054b50;
+    /** size of the end of central directory record without its comment */
+    static final int END_SIZE = 22;
+    /** the record's comment is at most this long, so the record is within that much of the end */
+    static final int MAX_COMMENT = 0xFFFF;
+
+    private static final ESLogger logger = Loggers.getLogger(JarHellCache.class);
+
+    /** the classpath, parsed once: jar hell, the template policy and the classpath permissions all need it */
+    private static final URL[] CLASSPATH = JarHell.parseClassPath();
+
+    /** returns the parsed classpath */
+    static URL[] classPath() {
+        return CLASSPATH.clone();
+    }
+
+    /**
+     * Checks the classpath for jar hell, unless the same classpath already passed before.
+     * @param cache where the fingerprint of the last good classpath is kept, or null to always scan
+     */
+    static void checkJarHell(StartupCache cache) throws Exception {
+        String fingerprint = cache == null ? null : fingerprint(CLASSPATH);
+        if (fingerprint != null) {
+            byte[] cached = cache.get(CACHE_KEY);
+            if (cached != null && fingerprint.equals(new String(cached, StandardCharsets.UTF_8))) {
+                logger.debug("classpath unchanged since the last jar hell scan, skipping it");
+                return;
+            }
+        }
+        JarHell.checkJarHell(CLASSPATH);
+        if (fingerprint != null) {
+            cache.put(CACHE_KEY, fingerprint.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** returns the fingerprint of {@code classpath}, or null if it can't be fingerprinted cheaply */
+    @SuppressForbidden(reason = "accesses fully qualified URLs to fingerprint the classpath")
+    static String fingerprint(URL[] classpath) throws IOException {
+        MessageDigest digest = StartupCache.newDigest();
+        // jar hell also checks jars against the running java version
+        update(digest, System.getProperty("java.specification.version"));
+        for (URL url : classpath) {
+            Path path;
+            try {
+                path = PathUtils.get(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new RuntimeException(e);
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile() == false) {
+                return null;
+            }
+            update(digest, path.toString());
+            update(digest, Long.toString(attributes.size()));
+            update(digest, Long.toString(attributes.lastModifiedTime().toMillis()));
+            update(digest, Long.toString(centralDirectoryChecksum(path, attributes.size())));
+        }
+        return StartupCache.toHex(digest.digest());
+    }
+
+    /** crc32 of the central directory of the jar at {@code path}, or of the whole file if it has none we can find */
+    static long centralDirectoryChecksum(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int tailLength = (int) Math.min(size, END_SIZE + MAX_COMMENT);
+            ByteBuffer tail = read(channel, size - tailLength, tailLength).order(ByteOrder.LITTLE_ENDIAN);
+            long start = 0;
+            long length = size;
+            // the record is the last one, a comment could contain the signature too
+            for (int i = tail.limit() - END_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    long cdLength = tail.getInt(i + 12) & 0xFFFFFFFFL;
+                    long cdStart = tail.getInt(i + 16) & 0xFFFFFFFFL;
+                    // 0xFFFFFFFF means the real values are in the zip64 record
+                    if (cdLength != 0xFFFFFFFFL && cdStart != 0xFFFFFFFFL && cdStart + cdLength <= size) {
+                        start = cdStart;
+                        length = cdLength;
+                    }
+                    break;
+                }
+            }
+            CRC32 crc = new CRC32();
+            for (long position = start; position < start + length; ) {
+                int chunk = (int) Math.min(start + length - position, 1 << 16);
+                ByteBuffer buffer = read(channel, position, chunk);
+                crc.update(buffer.array(), 0, buffer.limit());
+                if (buffer.limit() < chunk) {
+                    break;
+                }
+                position += chunk;
+            }
+            return crc.getValue();
+        }
+    }
+
+    /** reads up to {@code length} bytes from {@code position}, fewer at the end of the file */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // separator, so adjacent values can't run into each other
+        digest.update((byte) 0);
+    }
+}
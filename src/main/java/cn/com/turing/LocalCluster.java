@@ -0,0 +1,153 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.cli.Terminal;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Settings for a cluster of several nodes on loopback, started by the {@code cluster} command
+ * either in the current jvm (see {@link Bootstrap#setup}) or as one child jvm per node.
+ * <p>
+ * Node {@code i} gets its own data path, and the http and transport ports {@code base + i}. All
+ * nodes discover each other through unicast on loopback.
+ */
+final class LocalCluster {
+
+    /** jvm mode: all nodes in the current jvm, sharing its heap and security manager */
+    static final String MODE_JVM = "jvm";
+    /** process mode: one child jvm per node */
+    static final String MODE_PROCESS = "process";
+
+    static final String DEFAULT_CLUSTER_NAME = "local-cluster";
+    static final int DEFAULT_HTTP_PORT = 9200;
+    static final int DEFAULT_TRANSPORT_PORT = 9300;
+
+    /** jvm options not passed on to the nodes' jvms, they'd all try to bind the same debugger port */
+    private static final List<String> DROPPED_OPTIONS = Arrays.asList("-agentlib:jdwp", "-Xrunjdwp", "-Xdebug");
+
+    /** no instantiation */
+    private LocalCluster() {}
+
+    /** number of nodes to start in this jvm, 1 unless started by the {@code cluster} command */
+    static int size(Settings settings) {
+        int size = settings.getAsInt(Bootstrap.LOCAL_CLUSTER_NODES_SETTING, 1);
+        if (size < 1) {
+            throw new IllegalArgumentException("[" + Bootstrap.LOCAL_CLUSTER_NODES_SETTING + "] must be >= 1, got [" + size + "]");
+        }
+        return size;
+    }
+
+    /**
+     * Settings shared by the whole cluster. Lists the data path of every node as {@code path.data},
+     * so the environment (and the security manager's file permissions) cover all of them.
+     */
+    static Settings clusterSettings(Settings settings) {
+        int size = size(settings);
+        Settings.Builder builder = Settings.builder()
+                .put("cluster.name", DEFAULT_CLUSTER_NAME)
+                .put(settings)
+                .putArray("path.data", dataPaths(settings, size));
+        return builder.build();
+    }
+
+    /** settings of node {@code i} of the cluster described by {@code clusterSettings} */
+    static Settings nodeSettings(Settings clusterSettings, int i) {
+        int size = size(clusterSettings);
+        int httpPort = clusterSettings.getAsInt(Bootstrap.LOCAL_CLUSTER_HTTP_PORT_SETTING, DEFAULT_HTTP_PORT);
+        int transportPort = clusterSettings.getAsInt(Bootstrap.LOCAL_CLUSTER_TRANSPORT_PORT_SETTING, DEFAULT_TRANSPORT_PORT);
+        String[] unicastHosts = new String[size];
+        for (int node = 0; node < size; node++) {
+            unicastHosts[node] = "127.0.0.1:" + (transportPort + node);
+        }
+        Settings.Builder builder = Settings.builder()
+                .put("network.host", "_local_")
+                .put(clusterSettings)
+                .put("node.name", "node-" + i)
+                .putArray("path.data", dataPaths(clusterSettings, size)[i])
+                .put("http.port", httpPort + i)
+                .put("transport.tcp.port", transportPort + i)
+                .putArray("discovery.zen.ping.unicast.hosts", unicastHosts)
+                .put("discovery.zen.minimum_master_nodes", size / 2 + 1);
+        // the node itself is a plain single node
+        builder.remove(Bootstrap.LOCAL_CLUSTER_NODES_SETTING);
+        builder.remove(Bootstrap.LOCAL_CLUSTER_HTTP_PORT_SETTING);
+        builder.remove(Bootstrap.LOCAL_CLUSTER_TRANSPORT_PORT_SETTING);
+        return builder.build();
+    }
+
+    /** the settings of every node, for the security manager's bind permissions */
+    static List<Settings> allNodeSettings(Settings clusterSettings) {
+        int size = size(clusterSettings);
+        List<Settings> nodes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            nodes.add(nodeSettings(clusterSettings, i));
+        }
+        return nodes;
+    }
+
+    /**
+     * Data path of each node: the configured ones if there is one per node (so nodes can get a disk
+     * each), otherwise {@code local-cluster/node-i} below the first configured data path, or below
+     * {@code data} in the home directory.
+     */
+    private static String[] dataPaths(Settings settings, int size) {
+        String[] configured = settings.getAsArray("path.data");
+        if (configured.length == size && size > 1) {
+            return configured;
+        }
+        Path base = configured.length > 0 ? PathUtils.get(configured[0]) : PathUtils.get(settings.get("path.home"), "data");
+        String[] paths = new String[size];
+        for (int i = 0; i < size; i++) {
+            paths[i] = base.resolve(DEFAULT_CLUSTER_NAME).resolve("node-" + i).toAbsolutePath().toString();
+        }
+        return paths;
+    }
+
+    /**
+     * Starts every node of the cluster in a child jvm and waits for them to exit. Stopping the
+     * current jvm stops the children too.
+     */
+    static int startProcesses(Terminal terminal, Settings settings) throws IOException, InterruptedException {
+        final Settings clusterSettings = clusterSettings(settings);
+        // also read by the shutdown hook
+        final List<Process> processes = new CopyOnWriteArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+            }
+        });
+        List<Settings> nodes = allNodeSettings(clusterSettings);
+        for (int i = 0; i < nodes.size(); i++) {
+            List<String> command = ChildJvm.javaCommand(DROPPED_OPTIONS);
+            command.add(Turingsearch.class.getName());
+            command.add("start");
+            for (Map.Entry<String, String> entry : nodes.get(i).getAsMap().entrySet()) {
+                String key = entry.getKey().startsWith("es.") ? entry.getKey() : "es." + entry.getKey();
+                command.add("-D" + key + "=" + entry.getValue());
+            }
+            terminal.println("starting node-%d (http port [%s], transport port [%s])", i, nodes.get(i).get("http.port"),
+                    nodes.get(i).get("transport.tcp.port"));
+            processes.add(ChildJvm.start(command));
+        }
+        int failed = 0;
+        for (int i = 0; i < processes.size(); i++) {
+            int status = processes.get(i).waitFor();
+            if (status != 0) {
+                terminal.println("node-%d exited with status [%d]", i, status);
+                failed++;
+            }
+        }
+        return failed;
+    }
+}
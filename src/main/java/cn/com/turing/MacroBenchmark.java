@@ -0,0 +1,399 @@
+package cn.com.turing;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.monitor.jvm.JvmInfo;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A macro benchmark run by the {@code bench} command against a throwaway node: bulk indexes a
+ * synthetic corpus, then runs a mixed search and aggregation workload at fixed concurrency, and
+ * reports throughput and latency percentiles as json.
+ * <p>
+ * Everything random derives from the seed: the same options produce the same corpus and the same
+ * sequence of requests, whatever the number of threads, so runs on different jvms, hardware or
+ * releases are comparable.
+ */
+final class MacroBenchmark {
+
+    static final String INDEX = "bench";
+    static final String TYPE = "doc";
+
+    /** field types of the corpus */
+    static final String TEXT = "text";
+    static final String KEYWORD = "keyword";
+    static final String LONG = "long";
+    static final String DOUBLE = "double";
+    static final String DATE = "date";
+
+    /** number of distinct words in text fields, picked with a skew so some are much more common than others */
+    static final int VOCABULARY_SIZE = 10000;
+    /** number of distinct values of keyword fields */
+    static final int KEYWORD_CARDINALITY = 1000;
+    /** dates fall within a year from here */
+    static final long DATE_BASE_MILLIS = 1451606400000L; // 2016-01-01
+    static final long DATE_RANGE_MILLIS = TimeUnit.DAYS.toMillis(365);
+
+    /** latencies above this are recorded as this */
+    static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    final int docs;
+    final Map<String,Integer> fields;
+    final int docSize;
+    final int bulkSize;
+    final int threads;
+    final int searches;
+    final int warmupSearches;
+    final int shards;
+    final long seed;
+
+    private final String[] vocabulary;
+
+    MacroBenchmark(int docs, Map<String,Integer> fields, int docSize, int bulkSize, int threads, int searches, int warmupSearches,
+                   int shards, long seed) {
+        if (docs < 1 || bulkSize < 1 || threads < 1 || searches < 0 || warmupSearches < 0 || shards < 1 || docSize < 0) {
+            throw new IllegalArgumentException("docs, bulk size, threads and shards must be >= 1, the rest >= 0");
+        }
+        this.docs = docs;
+        this.fields = fields;
+        this.docSize = docSize;
+        this.bulkSize = bulkSize;
+        this.threads = threads;
+        this.searches = searches;
+        this.warmupSearches = warmupSearches;
+        this.shards = shards;
+        this.seed = seed;
+        Random random = new Random(seed);
+        this.vocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = word(random);
+        }
+    }
+
+    /** parses a field mix like {@code text:2,keyword:2,long:1}: the number of fields of each type */
+    static Map<String,Integer> parseFields(String mix) {
+        Map<String,Integer> fields = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] typeAndCount = part.trim().split(":");
+            String type = typeAndCount[0].trim().toLowerCase(Locale.ROOT);
+            switch (type) {
+                case TEXT:
+                case KEYWORD:
+                case LONG:
+                case DOUBLE:
+                case DATE:
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown field type [" + type + "] in field mix [" + mix + "]");
+            }
+            int count = typeAndCount.length > 1 ? Integer.parseInt(typeAndCount[1].trim()) : 1;
+            if (count < 0) {
+                throw new IllegalArgumentException("negative field count in field mix [" + mix + "]");
+            }
+            fields.put(type, count);
+        }
+        return fields;
+    }
+
+    /** runs the benchmark against {@code client}, and writes the report to {@code report} */
+    void run(final Client client, XContentBuilder report) throws Exception {
+        createIndex(client);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            report.startObject();
+            writeSetup(report);
+            index(client, executor, report);
+            client.admin().indices().prepareRefresh(INDEX).get();
+            search(client, executor, report);
+            report.endObject();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void createIndex(Client client) throws IOException {
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE).startObject("properties");
+        for (Map.Entry<String,Integer> entry : fields.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                mapping.startObject(entry.getKey() + "_" + i);
+                switch (entry.getKey()) {
+                    case TEXT:
+                        mapping.field("type", "string");
+                        break;
+                    case KEYWORD:
+                        mapping.field("type", "string").field("index", "not_analyzed");
+                        break;
+                    default:
+                        mapping.field("type", entry.getKey());
+                }
+                mapping.endObject();
+            }
+        }
+        mapping.endObject().endObject().endObject();
+        client.admin().indices().prepareCreate(INDEX)
+                .setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+                .addMapping(TYPE, mapping)
+                .get();
+        client.admin().cluster().prepareHealth(INDEX).setWaitForGreenStatus().get();
+    }
+
+    private void writeSetup(XContentBuilder report) throws IOException {
+        report.startObject("setup");
+        report.field("version", Version.CURRENT.toString());
+        report.field("jvm", JvmInfo.jvmInfo().getVmName() + " " + JvmInfo.jvmInfo().getVmVersion());
+        report.field("jvm_arguments", JvmInfo.jvmInfo().getInputArguments());
+        report.field("available_processors", Runtime.getRuntime().availableProcessors());
+        report.field("docs", docs);
+        report.startObject("fields");
+        for (Map.Entry<String,Integer> entry : fields.entrySet()) {
+            report.field(entry.getKey(), entry.getValue());
+        }
+        report.endObject();
+        report.field("doc_size", docSize);
+        report.field("bulk_size", bulkSize);
+        report.field("threads", threads);
+        report.field("searches", searches);
+        report.field("warmup_searches", warmupSearches);
+        report.field("shards", shards);
+        report.field("seed", seed);
+        report.endObject();
+    }
+
+    private void index(final Client client, ExecutorService executor, XContentBuilder report) throws Exception {
+        final Recorder latencies = new Recorder(MAX_LATENCY_MICROS, 3);
+        final int bulks = (docs + bulkSize - 1) / bulkSize;
+        List<Future<Void>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int b = 0; b < bulks; b++) {
+            final int bulk = b;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // one random per bulk, so the corpus doesn't depend on which thread runs it
+                    Random random = new Random(seed + bulk);
+                    BulkRequestBuilder request = client.prepareBulk();
+                    int first = bulk * bulkSize;
+                    for (int doc = first; doc < Math.min(first + bulkSize, docs); doc++) {
+                        request.add(client.prepareIndex(INDEX, TYPE, Integer.toString(doc)).setSource(document(random)));
+                    }
+                    long bulkStart = System.nanoTime();
+                    BulkResponse response = request.get();
+                    record(latencies, System.nanoTime() - bulkStart);
+                    if (response.hasFailures()) {
+                        throw new IllegalStateException("bulk failed: " + response.buildFailureMessage());
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        long tookNanos = System.nanoTime() - start;
+        report.startObject("indexing");
+        report.field("took_millis", TimeUnit.NANOSECONDS.toMillis(tookNanos));
+        report.field("docs_per_second", docs * (double) TimeUnit.SECONDS.toNanos(1) / tookNanos);
+        writeLatencies(report, "bulk_latency_micros", latencies.getIntervalHistogram());
+        report.endObject();
+    }
+
+    private XContentBuilder document(Random random) throws IOException {
+        XContentBuilder doc = XContentFactory.jsonBuilder().startObject();
+        Integer textFields = fields.get(TEXT);
+        int charsPerTextField = textFields == null || textFields == 0 ? 0 : docSize / textFields;
+        for (Map.Entry<String,Integer> entry : fields.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                String name = entry.getKey() + "_" + i;
+                switch (entry.getKey()) {
+                    case TEXT:
+                        StringBuilder text = new StringBuilder(charsPerTextField + 16);
+                        while (text.length() < charsPerTextField) {
+                            text.append(randomWord(random)).append(' ');
+                        }
+                        doc.field(name, text.toString());
+                        break;
+                    case KEYWORD:
+                        doc.field(name, "value-" + random.nextInt(KEYWORD_CARDINALITY));
+                        break;
+                    case LONG:
+                        doc.field(name, (long) random.nextInt(1000000));
+                        break;
+                    case DOUBLE:
+                        doc.field(name, random.nextDouble() * 1000);
+                        break;
+                    case DATE:
+                        doc.field(name, DATE_BASE_MILLIS + (long) (random.nextDouble() * DATE_RANGE_MILLIS));
+                        break;
+                    default:
+                        throw new AssertionError(entry.getKey());
+                }
+            }
+        }
+        return doc.endObject();
+    }
+
+    /** the search operations the corpus has fields for */
+    private List<String> operations() {
+        List<String> operations = new ArrayList<>();
+        if (count(TEXT) > 0) {
+            // full text search is the bulk of most workloads
+            Collections.addAll(operations, "match", "match", "match", "match");
+        }
+        if (count(KEYWORD) > 0) {
+            Collections.addAll(operations, "term", "term", "terms_agg");
+        }
+        if (count(LONG) > 0) {
+            Collections.addAll(operations, "range", "stats_agg");
+        }
+        if (count(DATE) > 0) {
+            operations.add("date_histogram_agg");
+        }
+        if (operations.isEmpty()) {
+            operations.add("match_all");
+        }
+        return operations;
+    }
+
+    private int count(String type) {
+        Integer count = fields.get(type);
+        return count == null ? 0 : count;
+    }
+
+    private SearchRequestBuilder searchRequest(Client client, String operation, Random random) {
+        SearchRequestBuilder request = client.prepareSearch(INDEX);
+        switch (operation) {
+            case "match":
+                return request.setQuery(QueryBuilders.matchQuery(field(TEXT, random), randomWord(random) + " " + randomWord(random)));
+            case "term":
+                return request.setQuery(QueryBuilders.termQuery(field(KEYWORD, random), "value-" + random.nextInt(KEYWORD_CARDINALITY)));
+            case "range":
+                int from = random.nextInt(1000000);
+                return request.setQuery(QueryBuilders.rangeQuery(field(LONG, random)).gte(from).lt(from + 10000));
+            case "terms_agg":
+                return request.setSize(0).addAggregation(AggregationBuilders.terms("terms").field(field(KEYWORD, random)).size(10));
+            case "stats_agg":
+                return request.setSize(0).addAggregation(AggregationBuilders.stats("stats").field(field(LONG, random)));
+            case "date_histogram_agg":
+                return request.setSize(0).addAggregation(
+                        AggregationBuilders.dateHistogram("histogram").field(field(DATE, random)).interval(DateHistogramInterval.DAY));
+            case "match_all":
+                return request.setQuery(QueryBuilders.matchAllQuery());
+            default:
+                throw new AssertionError(operation);
+        }
+    }
+
+    private void search(final Client client, ExecutorService executor, XContentBuilder report) throws Exception {
+        final List<String> operations = operations();
+        final Map<String,Recorder> latencies = new LinkedHashMap<>();
+        for (String operation : operations) {
+            latencies.put(operation, new Recorder(MAX_LATENCY_MICROS, 3));
+        }
+        // warm-up requests are not recorded, their number is part of the setup
+        runSearches(client, executor, operations, null, -1, warmupSearches);
+        long start = System.nanoTime();
+        runSearches(client, executor, operations, latencies, warmupSearches, searches);
+        long tookNanos = System.nanoTime() - start;
+
+        Histogram total = new Histogram(MAX_LATENCY_MICROS, 3);
+        report.startObject("search");
+        report.field("took_millis", TimeUnit.NANOSECONDS.toMillis(tookNanos));
+        report.field("ops_per_second", searches * (double) TimeUnit.SECONDS.toNanos(1) / tookNanos);
+        report.startObject("operations");
+        for (Map.Entry<String,Recorder> entry : latencies.entrySet()) {
+            Histogram histogram = entry.getValue().getIntervalHistogram();
+            total.add(histogram);
+            writeLatencies(report, entry.getKey(), histogram);
+        }
+        report.endObject();
+        writeLatencies(report, "latency_micros", total);
+        report.endObject();
+    }
+
+    /** runs {@code count} searches, numbered from {@code first}: the number decides the search, not the thread */
+    private void runSearches(final Client client, ExecutorService executor, final List<String> operations,
+                             final Map<String,Recorder> latencies, final int first, final int count) throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                        Random random = new Random(seed ^ (0x9E3779B97F4A7C15L * (first + i)));
+                        String operation = operations.get(random.nextInt(operations.size()));
+                        SearchRequestBuilder request = searchRequest(client, operation, random);
+                        long searchStart = System.nanoTime();
+                        request.get();
+                        if (latencies != null) {
+                            record(latencies.get(operation), System.nanoTime() - searchStart);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private String field(String type, Random random) {
+        return type + "_" + random.nextInt(count(type));
+    }
+
+    /** a word of the vocabulary, the lower ones are much more common */
+    private String randomWord(Random random) {
+        double r = random.nextDouble();
+        return vocabulary[(int) (r * r * r * vocabulary.length)];
+    }
+
+    private static String word(Random random) {
+        char[] word = new char[3 + random.nextInt(8)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+
+    private static void record(Recorder recorder, long nanos) {
+        recorder.recordValue(Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    private static void writeLatencies(XContentBuilder report, String name, Histogram histogram) throws IOException {
+        report.startObject(name);
+        report.field("count", histogram.getTotalCount());
+        report.field("mean", histogram.getMean());
+        for (double percentile : PERCENTILES) {
+            report.field("p" + String.valueOf(percentile).replace(".0", ""), histogram.getValueAtPercentile(percentile));
+        }
+        report.field("max", histogram.getMaxValue());
+        report.endObject();
+    }
+}
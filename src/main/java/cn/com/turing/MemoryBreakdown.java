@@ -0,0 +1,248 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the resident memory of a process goes, from its smaps (linux): the java heap, files mapped
+ * from each data path (the index files), other mapped files (jars, libraries), thread stacks, and
+ * the remaining anonymous memory (direct buffers, metaspace, the code cache, malloc arenas of the
+ * jvm and of native libraries). With the page cache sized against the heap, the index files show
+ * how much of it the node actually keeps resident.
+ * <p>
+ * Thread stacks are told apart from other anonymous memory by their guard: a small inaccessible
+ * mapping right below them. Smaps is expensive to read with many mappings, so a breakdown is
+ * reused for {@link #MIN_INTERVAL}.
+ */
+final class MemoryBreakdown implements ToXContent {
+
+    static final TimeValue MIN_INTERVAL = TimeValue.timeValueSeconds(10);
+    /** guards are a page from glibc plus the jvm's guard zones */
+    static final long MAX_GUARD = 64 * 1024;
+    /** stacks are at most this large, anything larger behind a guard is something else */
+    static final long MAX_STACK = 16 * 1024 * 1024;
+
+    /** sizes of one group of mappings */
+    static final class Group {
+        int mappings;
+        long size;
+        long rss;
+        long pss;
+        long swap;
+
+        void add(ProcSmaps.Region region) {
+            mappings++;
+            size += region.mapping.length();
+            rss += region.rss;
+            pss += region.pss;
+            swap += region.swap;
+        }
+
+        XContentBuilder toXContent(XContentBuilder builder) throws IOException {
+            builder.field("mappings", mappings);
+            builder.field("size_in_bytes", size);
+            builder.field("rss_in_bytes", rss);
+            builder.field("pss_in_bytes", pss);
+            builder.field("swap_in_bytes", swap);
+            return builder;
+        }
+    }
+
+    /** {@code /proc/self} or {@code /proc/<pid>} */
+    private final String proc;
+    private final Path[] dataPaths;
+    /** what files below each data path start with in the maps, see {@link ProcMaps#prefix} */
+    private final String[] prefixes;
+    /** -1 if unknown, the heap is then counted as anonymous memory */
+    private final long maxHeap;
+    /** the compressed class space reserved behind the heap, 0 if none */
+    private final long classSpace;
+
+    // guarded by this
+    private long sampledNanos;
+    private Map<String,Group> groups;
+    private Map<String,Group> indexFiles;
+
+    MemoryBreakdown(String proc, Path[] dataPaths, long maxHeap, long classSpace) {
+        this.proc = proc;
+        this.dataPaths = dataPaths;
+        this.prefixes = new String[dataPaths.length];
+        for (int i = 0; i < dataPaths.length; i++) {
+            prefixes[i] = ProcMaps.prefix(dataPaths[i]);
+        }
+        this.maxHeap = maxHeap;
+        this.classSpace = classSpace;
+    }
+
+    /** the breakdown of the current process */
+    static MemoryBreakdown self(Path[] dataPaths) {
+        return new MemoryBreakdown("/proc/self", dataPaths, ProcMaps.maxHeapSize(), ProcMaps.compressedClassSpaceSize());
+    }
+
+    /** the breakdown of the node running as {@code pid}, its heap layout comes from its command line */
+    static MemoryBreakdown process(long pid, Path[] dataPaths) {
+        String proc = "/proc/" + pid;
+        List<String> args = new ArrayList<>();
+        String cmdline = ProcFiles.line(proc + "/cmdline");
+        if (cmdline != null) {
+            for (String arg : cmdline.split("\u0000")) {
+                args.add(arg);
+            }
+        }
+        return new MemoryBreakdown(proc, dataPaths, maxHeap(args), classSpace(args));
+    }
+
+    /**
+     * The compressed class space set in {@code args}, 0 if switched off. Unless set it is sized like
+     * ours, it only depends on the jvm's defaults.
+     */
+    static long classSpace(List<String> args) {
+        long classSpace = ProcMaps.compressedClassSpaceSize();
+        for (String arg : args) {
+            if (arg.equals("-XX:-UseCompressedClassPointers") || arg.equals("-XX:-UseCompressedOops")) {
+                classSpace = 0;
+            } else if (arg.startsWith("-XX:CompressedClassSpaceSize=") && classSpace > 0) {
+                long size = parseSize(arg.substring("-XX:CompressedClassSpaceSize=".length()));
+                classSpace = size > 0 ? size : classSpace;
+            }
+        }
+        return classSpace;
+    }
+
+    /** the max heap set by {@code -Xmx} or {@code -XX:MaxHeapSize=} in {@code args}, the last one wins. -1 if none */
+    static long maxHeap(List<String> args) {
+        long maxHeap = -1;
+        for (String arg : args) {
+            String value = null;
+            if (arg.startsWith("-Xmx")) {
+                value = arg.substring("-Xmx".length());
+            } else if (arg.startsWith("-XX:MaxHeapSize=")) {
+                value = arg.substring("-XX:MaxHeapSize=".length());
+            }
+            if (value != null) {
+                long size = parseSize(value);
+                maxHeap = size > 0 ? size : maxHeap;
+            }
+        }
+        return maxHeap;
+    }
+
+    /** a size as the jvm takes it: 4g, 4096m or plain bytes. -1 if invalid, the jvm would not have started */
+    private static long parseSize(String value) {
+        try {
+            return value.matches("[0-9]+") ? Long.parseLong(value) : ByteSizeValue.parseBytesSizeValue(value + "b", "jvm option").bytes();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /** samples smaps unless the last sample is recent enough */
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        if (groups != null && now - sampledNanos < MIN_INTERVAL.nanos()) {
+            return;
+        }
+        List<ProcSmaps.Region> regions = ProcSmaps.read(proc + "/smaps");
+        List<ProcMaps.Mapping> mappings = new ArrayList<>(regions.size());
+        for (ProcSmaps.Region region : regions) {
+            mappings.add(region.mapping);
+        }
+        long[] heap = maxHeap > 0 ? ProcMaps.javaHeap(mappings, maxHeap, classSpace) : null;
+        Map<String,Group> groups = new LinkedHashMap<>();
+        for (String name : new String[] { "heap", "index_files", "files", "stacks", "anonymous" }) {
+            groups.put(name, new Group());
+        }
+        Map<String,Group> indexFiles = new LinkedHashMap<>();
+        for (Path dataPath : dataPaths) {
+            indexFiles.put(dataPath.toString(), new Group());
+        }
+        ProcSmaps.Region previous = null;
+        for (ProcSmaps.Region region : regions) {
+            ProcMaps.Mapping mapping = region.mapping;
+            if (heap != null && mapping.start >= heap[0] && mapping.start < heap[1]) {
+                groups.get("heap").add(region);
+            } else if (mapping.path.startsWith("/")) {
+                String dataPath = dataPath(mapping.path);
+                if (dataPath != null) {
+                    groups.get("index_files").add(region);
+                    indexFiles.get(dataPath).add(region);
+                } else {
+                    groups.get("files").add(region);
+                }
+            } else if (mapping.path.startsWith("[stack") || stack(previous, mapping)) {
+                groups.get("stacks").add(region);
+            } else {
+                // [heap] is the malloc heap, the others are small kernel mappings ([vdso], [vvar])
+                groups.get("anonymous").add(region);
+            }
+            previous = region;
+        }
+        this.groups = groups;
+        this.indexFiles = indexFiles;
+        sampledNanos = now;
+    }
+
+    /** the data path {@code file} is below, as configured, or null */
+    private String dataPath(String file) {
+        for (int i = 0; i < dataPaths.length; i++) {
+            if (file.startsWith(prefixes[i])) {
+                return dataPaths[i].toString();
+            }
+        }
+        return null;
+    }
+
+    /** whether {@code mapping} is a thread stack, with {@code previous} its guard */
+    private static boolean stack(ProcSmaps.Region previous, ProcMaps.Mapping mapping) {
+        return previous != null && mapping.anonymous() && mapping.permissions.startsWith("rw") && mapping.length() <= MAX_STACK
+                && previous.mapping.anonymous() && previous.mapping.permissions.startsWith("---")
+                && previous.mapping.end == mapping.start && previous.mapping.length() <= MAX_GUARD;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        Map<String,Long> rollup = ProcSmaps.rollup(proc + "/smaps_rollup");
+        if (rollup.isEmpty() == false) {
+            builder.startObject("total");
+            builder.field("rss_in_bytes", rollup.get("Rss"));
+            builder.field("pss_in_bytes", rollup.get("Pss"));
+            builder.field("anonymous_in_bytes", rollup.get("Anonymous"));
+            builder.field("swap_in_bytes", rollup.get("Swap"));
+            builder.endObject();
+        }
+        Map<String,Group> groups;
+        Map<String,Group> indexFiles;
+        synchronized (this) {
+            sample();
+            groups = this.groups;
+            indexFiles = this.indexFiles;
+        }
+        if (maxHeap > 0) {
+            builder.field("max_heap_in_bytes", maxHeap);
+        }
+        for (Map.Entry<String,Group> group : groups.entrySet()) {
+            builder.startObject(group.getKey());
+            group.getValue().toXContent(builder);
+            if (group.getKey().equals("index_files")) {
+                builder.startObject("data_paths");
+                for (Map.Entry<String,Group> dataPath : indexFiles.entrySet()) {
+                    builder.startObject(dataPath.getKey());
+                    dataPath.getValue().toXContent(builder);
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        return builder;
+    }
+}
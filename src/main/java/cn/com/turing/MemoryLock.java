@@ -0,0 +1,144 @@
+package cn.com.turing;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * How the node locks its memory, as configured by {@code bootstrap.memory_lock}:
+ * <ul>
+ *   <li>{@code false}: not at all</li>
+ *   <li>{@code true} or {@code all}: everything mapped at startup, with {@code mlockall}</li>
+ *   <li>{@code heap}: only the java heap, found in {@code /proc/self/maps} (linux only). The
+ *       reserved but not yet committed part of the heap is only covered if it's committed
+ *       in place, so this works best with {@code -Xms} equal to {@code -Xmx}</li>
+ * </ul>
+ * {@value Bootstrap#MEMORY_LOCK_ON_FAULT_SETTING} (linux 4.4+) locks pages as they are touched
+ * instead of faulting the whole range in at startup, which takes a long time for large heaps.
+ * {@value Bootstrap#MEMORY_LOCK_FUTURE_SETTING} also locks everything mapped later: that includes
+ * memory mapped index files, so it is only safe with {@code on_fault} and enough memory.
+ */
+final class MemoryLock implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(MemoryLock.class);
+
+    enum Mode {
+        NONE, ALL, HEAP;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    final Mode mode;
+    final boolean future;
+    final boolean onFault;
+
+    /** start and end address of the locked heap, null unless the heap was found */
+    private volatile long[] heap;
+
+    MemoryLock(Mode mode, boolean future, boolean onFault) {
+        this.mode = mode;
+        this.future = future;
+        this.onFault = onFault;
+    }
+
+    /**
+     * Reads {@code bootstrap.memory_lock} and its options, {@code bootstrap.mlockall} is the deprecated
+     * boolean it replaced.
+     */
+    static MemoryLock fromSettings(Settings settings, Boolean mlockall) {
+        String value = settings.get(Bootstrap.MEMORY_LOCK_SETTING);
+        Mode mode;
+        if (value == null) {
+            mode = mlockall != null && mlockall ? Mode.ALL : Mode.NONE;
+        } else {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "false":
+                    mode = Mode.NONE;
+                    break;
+                case "true":
+                case "all":
+                    mode = Mode.ALL;
+                    break;
+                case "heap":
+                    mode = Mode.HEAP;
+                    break;
+                default:
+                    throw new IllegalArgumentException("[" + Bootstrap.MEMORY_LOCK_SETTING + "] must be one of [false, true, all, heap], got ["
+                            + value + "]");
+            }
+        }
+        return new MemoryLock(mode, settings.getAsBoolean(Bootstrap.MEMORY_LOCK_FUTURE_SETTING, false),
+                settings.getAsBoolean(Bootstrap.MEMORY_LOCK_ON_FAULT_SETTING, false));
+    }
+
+    boolean enabled() {
+        return mode != Mode.NONE;
+    }
+
+    /** locks the memory as configured, failures are logged: the node can run without */
+    void apply() {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        if (Constants.WINDOWS) {
+            if (mode != Mode.ALL || future || onFault) {
+                logger.warn("only [{}: all] is supported on windows, locking the working set", Bootstrap.MEMORY_LOCK_SETTING);
+            }
+            Natives.tryVirtualLock();
+            return;
+        }
+        if (onFault && Constants.LINUX == false) {
+            logger.warn("[{}] is only supported on linux, ignoring it", Bootstrap.MEMORY_LOCK_ON_FAULT_SETTING);
+        }
+        int onFaultFlag = onFault && Constants.LINUX ? JNACLibrary.MCL_ONFAULT : 0;
+        if (mode == Mode.ALL) {
+            Natives.tryMlockall(JNACLibrary.MCL_CURRENT | (future ? JNACLibrary.MCL_FUTURE : 0) | onFaultFlag);
+            return;
+        }
+        long[] range = Constants.LINUX ? ProcMaps.javaHeap() : null;
+        if (range == null) {
+            logger.warn("unable to find the java heap, not locking memory. use [{}: all] instead", Bootstrap.MEMORY_LOCK_SETTING);
+            return;
+        }
+        logger.debug("locking java heap at [0x{}-0x{}]", Long.toHexString(range[0]), Long.toHexString(range[1]));
+        Natives.tryMlock(range[0], range[1] - range[0], onFault);
+        if (Natives.isMemoryLocked() == false) {
+            // locking what is mapped later would still report the node as locked
+            if (future) {
+                logger.warn("the java heap could not be locked, not locking future mappings either");
+            }
+            return;
+        }
+        heap = range;
+        if (future) {
+            Natives.tryMlockall(JNACLibrary.MCL_FUTURE | onFaultFlag);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("mode", mode.toString());
+        builder.field("future", future);
+        builder.field("on_fault", onFault);
+        builder.field("locked", Natives.isMemoryLocked());
+        long lockedBytes = Natives.lockedMemoryBytes();
+        if (lockedBytes >= 0) {
+            builder.field("locked_memory_in_bytes", lockedBytes);
+        }
+        long[] range = heap;
+        if (range != null) {
+            builder.field("heap_start", "0x" + Long.toHexString(range[0]));
+            builder.field("heap_size_in_bytes", range[1] - range[0]);
+        }
+        return builder;
+    }
+}
@@ -1,6 +1,7 @@
 package cn.com.turing;
 
 import org.elasticsearch.bootstrap.ConsoleCtrlHandler;
+import org.elasticsearch.common.io.PathUtils;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 
@@ -33,12 +34,20 @@ final class Natives {
         JNA_AVAILABLE = v;
     }
 
-    static void tryMlockall() {
+    static void tryMlockall(int flags) {
         if (!JNA_AVAILABLE) {
             logger.warn("cannot mlockall because JNA is not available");
             return;
         }
-        JNANatives.tryMlockall();
+        JNANatives.tryMlockall(flags);
+    }
+
+    static void tryMlock(long address, long length, boolean onFault) {
+        if (!JNA_AVAILABLE) {
+            logger.warn("cannot mlock because JNA is not available");
+            return;
+        }
+        JNANatives.tryMlock(address, length, onFault);
     }
 
     static boolean definitelyRunningAsRoot() {
@@ -72,6 +81,24 @@ final class Natives {
         return JNANatives.LOCAL_MLOCKALL;
     }
 
+    /**
+     * Returns the number of bytes currently locked in memory, 0 if memory is not locked, or -1 if
+     * it is but the amount is unknown (only linux reports it).
+     */
+    static long lockedMemoryBytes() {
+        if (isMemoryLocked() == false) {
+            return 0;
+        }
+        for (String line : ProcFiles.lines(PathUtils.get("/proc/self/status"))) {
+            // VmLck:	  524288 kB
+            if (line.startsWith("VmLck:")) {
+                String[] parts = line.substring("VmLck:".length()).trim().split("\\s+");
+                return Long.parseLong(parts[0]) * 1024;
+            }
+        }
+        return -1;
+    }
+
     static void trySeccomp(Path tmpFile) {
         if (!JNA_AVAILABLE) {
             logger.warn("cannot install syscall filters because JNA is not available");
@@ -86,5 +113,92 @@ final class Natives {
         }
         return JNANatives.LOCAL_SECCOMP;
     }
-}
 
+    /** Gives the kernel {@code advice} about a memory range, returns null on success or the error */
+    static String tryMadvise(long address, long length, int advice) {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.tryMadvise(address, length, advice);
+    }
+
+    /** Advises the kernel about the page cache of a file (posix_fadvise), returns null on success or the error */
+    static String tryFadvise(String file, int advice) {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.tryFadvise(file, advice);
+    }
+
+    /** Sets the numa memory policy of the calling thread and its future children, returns null on success or the error */
+    static String trySetMempolicy(int mode, long[] nodes) {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.trySetMempolicy(mode, nodes);
+    }
+
+    /** Sets the numa memory policy of an address range, returns null on success or the error */
+    static String tryMbind(long address, long length, int mode, long[] nodes) {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.tryMbind(address, length, mode, nodes);
+    }
+
+    /** Pins the calling thread to a set of cpus, returns null on success or the error */
+    static String trySetAffinity(long[] cpus) {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.trySetAffinity(cpus);
+    }
+
+    /** Sets the io priority of the calling thread, returns null on success or the error */
+    static String trySetIoPriority(int ioPriority) {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.trySetIoPriority(ioPriority);
+    }
+
+    /** Returns the cpus the calling thread may run on as a bit mask, or null if unknown */
+    static long[] getAffinity() {
+        if (!JNA_AVAILABLE) {
+            return null;
+        }
+        return JNANatives.getAffinity();
+    }
+
+    /** Returns null if memory could be locked, the reason why not otherwise. See {@link JNANatives#probeMlockall()} */
+    static String probeMlockall() {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.probeMlockall();
+    }
+
+    /** Returns the soft and hard limit of {@code resource}, or null if unknown */
+    static long[] getrlimit(int resource) {
+        if (!JNA_AVAILABLE) {
+            return null;
+        }
+        return JNANatives.getrlimit(resource);
+    }
+
+    /** Raises the soft limit of {@code resource} to its hard limit, and returns both, or null if unknown */
+    static long[] raiseRlimit(int resource) {
+        if (!JNA_AVAILABLE) {
+            return null;
+        }
+        return JNANatives.raiseRlimit(resource);
+    }
+
+    /** Returns null if a syscall filter could be installed, the reason why not otherwise */
+    static String probeSeccomp() {
+        if (!JNA_AVAILABLE) {
+            return "JNA not available";
+        }
+        return JNANatives.probeSeccomp();
+    }
+}
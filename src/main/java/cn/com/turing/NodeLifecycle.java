@@ -0,0 +1,234 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestFilter;
+import org.elasticsearch.rest.RestFilterChain;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The node's lifecycle, as seen by load balancers and deployment tooling:
+ * {@code STARTING -> WARMING -> READY -> DRAINING -> STOPPED}. States only ever move forward, but
+ * may be skipped (no warm-up configured, or stopped before the node was ready).
+ * <p>
+ * The state is served over the node's own http port as {@code GET} {@value #STATE_PATH} and
+ * {@value #READY_PATH} (200 when ready, 503 otherwise), as a section of {@link BootstrapStats}, and
+ * optionally written to a state file on every transition. An optional readiness file only exists
+ * while the node is ready. Once draining, all other http requests are turned away with a 503.
+ */
+final class NodeLifecycle implements ToXContent {
+
+    enum State {
+        STARTING, WARMING, READY, DRAINING, STOPPED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static final String STATE_PATH = "/_bootstrap/state";
+    static final String READY_PATH = "/_bootstrap/ready";
+    /** files are written here first and then moved in place */
+    static final String TMP_SUFFIX = ".tmp";
+
+
+    private final ESLogger logger = Loggers.getLogger(NodeLifecycle.class);
+
+    /** file that exists while ready, null if none */
+    private final Path readyFile;
+    /** file with the current state, null if none */
+    private final Path stateFile;
+
+    // guarded by this
+    private State state = State.STARTING;
+    private volatile long sinceMillis = System.currentTimeMillis();
+    /** http requests let through and not answered yet, see {@link #drain} */
+    private final AtomicLong httpInFlight = new AtomicLong();
+
+    NodeLifecycle(Path readyFile, Path stateFile) {
+        this.readyFile = readyFile;
+        this.stateFile = stateFile;
+    }
+
+    /** the file configured as {@code setting} in {@code settings}, or null */
+    static Path file(Settings settings, String setting) {
+        String file = settings.get(setting);
+        return file == null ? null : PathUtils.get(file).toAbsolutePath();
+    }
+
+    /** removes a readiness file left behind by a node that did not shut down cleanly, and writes the initial state */
+    synchronized void init() {
+        delete(readyFile);
+        write(stateFile);
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    /**
+     * Moves to {@code next}, if that is forward. Returns false (and changes nothing) if the
+     * lifecycle already is at or past {@code next}.
+     */
+    synchronized boolean moveTo(State next) {
+        if (next.ordinal() <= state.ordinal()) {
+            return false;
+        }
+        State previous = state;
+        state = next;
+        sinceMillis = System.currentTimeMillis();
+        logger.info("{} -> {}", previous, next);
+        if (next == State.READY) {
+            write(readyFile);
+        } else if (previous == State.READY) {
+            delete(readyFile);
+        }
+        write(stateFile);
+        notifyAll();
+        return true;
+    }
+
+    /** blocks until the node is stopped */
+    synchronized void awaitStopped() throws InterruptedException {
+        while (state != State.STOPPED) {
+            wait();
+        }
+    }
+
+    /** serves the state over http and turns other requests away once draining */
+    void registerHandlers(RestController controller) {
+        controller.registerHandler(RestRequest.Method.GET, STATE_PATH, new RestHandler() {
+            @Override
+            public void handleRequest(RestRequest request, RestChannel channel) throws Exception {
+                sendState(channel, RestStatus.OK);
+            }
+        });
+        controller.registerHandler(RestRequest.Method.GET, READY_PATH, new RestHandler() {
+            @Override
+            public void handleRequest(RestRequest request, RestChannel channel) throws Exception {
+                sendState(channel, state() == State.READY ? RestStatus.OK : RestStatus.SERVICE_UNAVAILABLE);
+            }
+        });
+        controller.registerFilter(new RestFilter() {
+            @Override
+            public void process(RestRequest request, final RestChannel channel, RestFilterChain filterChain) throws Exception {
+                // counted before the state is looked at, so a drain never misses a request that got through
+                httpInFlight.incrementAndGet();
+                State current = state();
+                if ((current == State.DRAINING || current == State.STOPPED)
+                        && request.rawPath().equals(STATE_PATH) == false && request.rawPath().equals(READY_PATH) == false) {
+                    httpInFlight.decrementAndGet();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.SERVICE_UNAVAILABLE, "node is shutting down"));
+                    return;
+                }
+                filterChain.continueProcessing(request, new RestChannel(request, channel.detailedErrorsEnabled()) {
+                    private final AtomicBoolean answered = new AtomicBoolean();
+
+                    @Override
+                    public void sendResponse(RestResponse response) {
+                        try {
+                            channel.sendResponse(response);
+                        } finally {
+                            if (answered.compareAndSet(false, true)) {
+                                httpInFlight.decrementAndGet();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void sendState(RestChannel channel, RestStatus status) throws IOException {
+        XContentBuilder builder = channel.newBuilder().startObject();
+        toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(status, builder));
+    }
+
+    /**
+     * Waits until the http requests let through before draining started were answered, or
+     * {@code timeout} passed. Returns true if they were.
+     * <p>
+     * Only requests of this node's http clients count: transport requests, replica writes and
+     * recoveries keep coming from the rest of the cluster until the node leaves it, so the busy
+     * thread pools say nothing about whether the node's own clients got their answers.
+     */
+    boolean drain(TimeValue timeout) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + timeout.nanos();
+        while (System.nanoTime() < deadline) {
+            long inFlight = httpInFlight.get();
+            if (inFlight == 0) {
+                logger.info("drained in-flight http requests in [{}]", TimeValue.timeValueNanos(System.nanoTime() - start));
+                return true;
+            }
+            logger.debug("waiting for [{}] in-flight http requests", inFlight);
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        logger.warn("[{}] http requests still in flight after [{}], closing anyway", httpInFlight.get(), timeout);
+        return false;
+    }
+
+    /** writes the current state to {@code file}, through a temporary file so tooling never sees a partial one */
+    private void write(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                XContentBuilder builder = XContentFactory.jsonBuilder(out).startObject();
+                toXContent(builder, ToXContent.EMPTY_PARAMS);
+                builder.endObject().close();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("unable to write [{}]", e, file);
+        }
+    }
+
+    private void delete(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("unable to delete [{}]", e, file);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        State current = state();
+        builder.field("state", current.toString());
+        builder.field("ready", current == State.READY);
+        builder.field("since_millis", sinceMillis);
+        builder.field("http_in_flight", httpInFlight.get());
+        return builder;
+    }
+}
@@ -0,0 +1,138 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the node's memory and threads go on a numa host (linux):
+ * <ul>
+ *   <li>{@value Bootstrap#NUMA_MEMORY_POLICY_SETTING}: {@code interleave} spreads memory across all
+ *       nodes, so no thread is stuck with mostly remote memory. It is set for the java heap (with
+ *       {@code mbind}, whoever touches a page first) and for the threads the node starts (with
+ *       {@code set_mempolicy}, which they inherit). Pages already touched stay where they are, so
+ *       it has little effect together with {@code -XX:+AlwaysPreTouch} or memory locking.</li>
+ *   <li>{@value Bootstrap#NUMA_THREAD_POOLS_SETTING_PREFIX}{@code <pool>}: the numa nodes (like
+ *       {@code 0} or {@code 0,1}) whose cpus the pool's threads are pinned to, see
+ *       {@link ThreadPlacement}.</li>
+ * </ul>
+ */
+final class NumaPlacement implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(NumaPlacement.class);
+
+    enum MemoryPolicy {
+        DEFAULT, INTERLEAVE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    final NumaTopology topology;
+    final MemoryPolicy memoryPolicy;
+    /** all placed pools, not only those placed by numa node */
+    final ThreadPlacement threads;
+    /** whether any pool is placed by numa node */
+    private final boolean pinned;
+    private volatile String memoryPolicyError;
+
+    NumaPlacement(NumaTopology topology, MemoryPolicy memoryPolicy, ThreadPlacement threads, boolean pinned) {
+        this.topology = topology;
+        this.memoryPolicy = memoryPolicy;
+        this.threads = threads;
+        this.pinned = pinned;
+    }
+
+    /** reads the numa settings, the pools placed by numa node are added to {@code threads} */
+    static NumaPlacement fromSettings(Settings settings, NumaTopology topology, ThreadPlacement threads) {
+        String policy = settings.get(Bootstrap.NUMA_MEMORY_POLICY_SETTING, "default");
+        MemoryPolicy memoryPolicy;
+        try {
+            memoryPolicy = MemoryPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("[" + Bootstrap.NUMA_MEMORY_POLICY_SETTING + "] must be one of [default, interleave], got ["
+                    + policy + "]", e);
+        }
+        boolean pinned = false;
+        for (Map.Entry<String,String> entry : settings.getByPrefix(Bootstrap.NUMA_THREAD_POOLS_SETTING_PREFIX).getAsMap().entrySet()) {
+            BitSet nodes = NumaTopology.parseCpuList(entry.getValue());
+            if (topology.nodes.isEmpty()) {
+                throw new IllegalArgumentException("[" + Bootstrap.NUMA_THREAD_POOLS_SETTING_PREFIX + entry.getKey()
+                        + "] is set, but the host has no numa nodes");
+            }
+            threads.add(entry.getKey(), topology.cpus(nodes), ThreadPlacement.NO_IO_PRIORITY);
+            pinned = true;
+        }
+        return new NumaPlacement(topology, memoryPolicy, threads, pinned);
+    }
+
+    boolean enabled() {
+        return memoryPolicy != MemoryPolicy.DEFAULT || pinned;
+    }
+
+    /** sets the memory policy for the heap and the current thread, the threads it starts inherit it */
+    void applyMemoryPolicy() {
+        if (memoryPolicy == MemoryPolicy.DEFAULT) {
+            return;
+        }
+        if (topology.nodes.size() < 2) {
+            logger.debug("host has [{}] numa nodes, not setting memory policy [{}]", topology.nodes.size(), memoryPolicy);
+            return;
+        }
+        long[] nodes = topology.nodeIds().toLongArray();
+        String error = Natives.trySetMempolicy(JNALinuxLibrary.MPOL_INTERLEAVE, nodes);
+        long[] heap = ProcMaps.javaHeap();
+        if (error == null && heap != null) {
+            error = Natives.tryMbind(heap[0], heap[1] - heap[0], JNALinuxLibrary.MPOL_INTERLEAVE, nodes);
+        } else if (error == null) {
+            // the policy of the thread still applies to the heap pages it touches first
+            logger.warn("unable to find the java heap, not binding it to numa nodes [{}]", NumaTopology.toCpuList(topology.nodeIds()));
+        }
+        if (error != null) {
+            memoryPolicyError = error;
+            logger.warn("unable to interleave memory across numa nodes: {}", error);
+        } else {
+            logger.info("interleaving memory across numa nodes [{}]", NumaTopology.toCpuList(topology.nodeIds()));
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("memory_policy", memoryPolicy.toString());
+        if (memoryPolicyError != null) {
+            builder.field("memory_policy_error", memoryPolicyError);
+        }
+        long[] affinity = Natives.getAffinity();
+        if (affinity != null) {
+            builder.field("process_cpus", NumaTopology.toCpuList(BitSet.valueOf(affinity)));
+        }
+        builder.startArray("nodes");
+        for (NumaTopology.Node node : topology.nodes.values()) {
+            builder.startObject();
+            builder.field("id", node.id);
+            builder.field("cpus", NumaTopology.toCpuList(node.cpus));
+            if (node.memoryBytes >= 0) {
+                builder.field("memory_in_bytes", node.memoryBytes);
+            }
+            builder.startArray("thread_pools");
+            for (ThreadPlacement.Pool pool : threads.pools().values()) {
+                if (pool.cpus != null && pool.cpus.intersects(node.cpus)) {
+                    builder.value(pool.name);
+                }
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+}
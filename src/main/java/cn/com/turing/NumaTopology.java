@@ -0,0 +1,133 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The numa nodes of the host and their cpus and memory, from sysfs (linux). A host without numa
+ * support has no nodes here, a single socket host has one.
+ */
+final class NumaTopology {
+
+    static final String NODES_PATH = "/sys/devices/system/node";
+
+    /** a numa node */
+    static final class Node {
+        final int id;
+        final BitSet cpus;
+        /** -1 if unknown */
+        final long memoryBytes;
+
+        Node(int id, BitSet cpus, long memoryBytes) {
+            this.id = id;
+            this.cpus = cpus;
+            this.memoryBytes = memoryBytes;
+        }
+    }
+
+    /** nodes by id */
+    final Map<Integer,Node> nodes;
+
+    NumaTopology(Map<Integer,Node> nodes) {
+        this.nodes = Collections.unmodifiableMap(nodes);
+    }
+
+    /** reads the topology of this host, empty if there is none to read */
+    static NumaTopology read() throws IOException {
+        Map<Integer,Node> nodes = new TreeMap<>();
+        Path root = PathUtils.get(NODES_PATH);
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "node[0-9]*")) {
+                for (Path node : stream) {
+                    int id = Integer.parseInt(node.getFileName().toString().substring("node".length()));
+                    String cpus = ProcFiles.line(node.resolve("cpulist").toString());
+                    nodes.put(id, new Node(id, cpus == null ? new BitSet() : parseCpuList(cpus), memoryBytes(node)));
+                }
+            }
+        }
+        return new NumaTopology(nodes);
+    }
+
+    private static long memoryBytes(Path node) {
+        for (String line : ProcFiles.lines(node.resolve("meminfo"))) {
+            // Node 0 MemTotal:       65844172 kB
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 5 && parts[2].equals("MemTotal:")) {
+                return Long.parseLong(parts[3]) * 1024;
+            }
+        }
+        return -1;
+    }
+
+    /** the cpus of the given nodes */
+    BitSet cpus(BitSet nodeIds) {
+        BitSet cpus = new BitSet();
+        for (int id = nodeIds.nextSetBit(0); id >= 0; id = nodeIds.nextSetBit(id + 1)) {
+            cpus.or(node(id).cpus);
+        }
+        return cpus;
+    }
+
+    /** all node ids */
+    BitSet nodeIds() {
+        BitSet ids = new BitSet();
+        for (int id : nodes.keySet()) {
+            ids.set(id);
+        }
+        return ids;
+    }
+
+    Node node(int id) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            throw new IllegalArgumentException("unknown numa node [" + id + "], the host has " + nodes.keySet());
+        }
+        return node;
+    }
+
+    /** parses a list like {@code 0-3,8,10-11}, the format sysfs and cgroups use for cpus and nodes */
+    static BitSet parseCpuList(String list) {
+        BitSet set = new BitSet();
+        for (String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            try {
+                if (dash < 0) {
+                    set.set(Integer.parseInt(range.trim()));
+                } else {
+                    set.set(Integer.parseInt(range.substring(0, dash).trim()), Integer.parseInt(range.substring(dash + 1).trim()) + 1);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid list [" + list + "], expected something like [0-3,8]", e);
+            }
+        }
+        return set;
+    }
+
+    /** formats {@code set} the way {@link #parseCpuList} reads it */
+    static String toCpuList(BitSet set) {
+        StringBuilder list = new StringBuilder();
+        for (int start = set.nextSetBit(0); start >= 0; ) {
+            int end = set.nextClearBit(start) - 1;
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(start);
+            if (end > start) {
+                list.append('-').append(end);
+            }
+            start = set.nextSetBit(end + 1);
+        }
+        return list.toString();
+    }
+}
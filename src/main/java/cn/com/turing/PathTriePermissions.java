@@ -0,0 +1,329 @@
+package cn.com.turing;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.File;
+import java.io.FilePermission;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.util.Enumeration;
+
+/**
+ * Permission collection for the dynamic (environment based) permissions, that answers
+ * {@link FilePermission} checks by walking a trie of the granted paths: O(path depth), instead of
+ * asking every granted path in turn.
+ * <p>
+ * Every permission is also added to a plain {@link Permissions}, which stays the reference (and
+ * is what {@link #elements()} enumerates): the trie only ever answers "yes". Names it can't handle
+ * (relative, not normalized, wildcards) and everything it doesn't grant fall through to the plain
+ * collection, so the outcome of a check never changes.
+ * <p>
+ * On jvms that canonicalize file permissions (java 8, or {@code jdk.io.permissionsUseCanonicalPath})
+ * both sides are compared after resolving symbolic links, so the trie does the same: granted paths
+ * are indexed by their canonical path and checked names are canonicalized before the lookup. That
+ * costs a (cached) {@link File#getCanonicalPath()} per check, which the jdk does for the checked
+ * permission anyway. Elsewhere paths are compared as given, and so is the trie.
+ */
+final class PathTriePermissions extends PermissionCollection {
+
+    /** true if file permissions compare canonical paths, with symbolic links resolved, rather than paths as given */
+    static final boolean CANONICAL_FILE_PERMISSIONS = Constants.JRE_IS_MINIMUM_JAVA9 == false
+            || Boolean.parseBoolean(System.getProperty("jdk.io.permissionsUseCanonicalPath", "false"));
+
+    // same bits as FilePermission uses internally
+    static final int EXECUTE  = 0x1;
+    static final int WRITE    = 0x2;
+    static final int READ     = 0x4;
+    static final int DELETE   = 0x8;
+    static final int READLINK = 0x10;
+
+    private final Permissions permissions = new Permissions();
+    private final Node root = new Node("");
+    private final boolean canonicalize;
+
+    PathTriePermissions() {
+        this(CANONICAL_FILE_PERMISSIONS);
+    }
+
+    /** {@code canonicalize} must match how the jvm compares file permissions, see {@link #CANONICAL_FILE_PERMISSIONS} */
+    PathTriePermissions(boolean canonicalize) {
+        this.canonicalize = canonicalize;
+    }
+
+    @Override
+    public void add(Permission permission) {
+        if (isReadOnly()) {
+            throw new SecurityException("attempt to add a Permission to a readonly PermissionCollection");
+        }
+        permissions.add(permission);
+        if (permission instanceof FilePermission) {
+            index((FilePermission) permission);
+        }
+    }
+
+    @Override
+    public boolean implies(Permission permission) {
+        if (permission instanceof FilePermission) {
+            String name = canonicalize ? canonicalPath(permission.getName()) : permission.getName();
+            if (name != null && lookup(name, actionMask(permission.getActions()))) {
+                return true;
+            }
+        }
+        return permissions.implies(permission);
+    }
+
+    /**
+     * The canonical path of the absolute {@code name}, like {@link FilePermission} resolves it on
+     * jvms that canonicalize. Null for relative names and wildcards, or if it can't be resolved.
+     */
+    static String canonicalPath(String name) {
+        if (name.startsWith("/") == false || name.endsWith("/-") || name.endsWith("/*")) {
+            return null;
+        }
+        try {
+            // absolute, so no user.dir lookup and no permission check
+            return new File(name).getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Enumeration<Permission> elements() {
+        return permissions.elements();
+    }
+
+    @Override
+    public void setReadOnly() {
+        super.setReadOnly();
+        permissions.setReadOnly();
+    }
+
+    /** adds {@code permission} to the trie, if it is an absolute path (optionally followed by a wildcard) */
+    private void index(FilePermission permission) {
+        String name = permission.getName();
+        int mask = actionMask(permission.getActions());
+        if (mask <= 0) {
+            return;
+        }
+        int kind = Node.EXACT;
+        if (name.endsWith("/-")) {
+            kind = Node.RECURSIVE;
+            name = name.substring(0, name.length() - 2);
+        } else if (name.endsWith("/*")) {
+            kind = Node.CHILDREN;
+            name = name.substring(0, name.length() - 2);
+        }
+        if (name.isEmpty()) {
+            // "/-" or "/*": everything (directly) below the root
+            name = "/";
+        }
+        if (name.startsWith("/") == false) {
+            return;
+        }
+        if (canonicalize) {
+            // the jdk resolves the directory of a wildcard the same way
+            name = canonicalPath(name);
+            if (name == null) {
+                return;
+            }
+        }
+        Path path = PathUtils.get(name).normalize();
+        Node node = root;
+        for (Path segment : path) {
+            node = node.childOrCreate(segment.toString());
+        }
+        node.grant(kind, mask);
+    }
+
+    /** returns true if the trie grants {@code mask} on {@code name}, false if it doesn't or can't tell */
+    boolean lookup(String name, int mask) {
+        if (mask <= 0 || isNormalizedAbsolute(name) == false) {
+            return false;
+        }
+        int granted = 0;
+        Node parent = null;
+        Node node = root;
+        int start = 1;
+        final int length = name.length();
+        while (start < length) {
+            // everything below node is granted its recursive actions
+            granted |= node.recursive;
+            if ((granted & mask) == mask) {
+                return true;
+            }
+            int end = name.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            Node child = node.child(name, start, end);
+            if (child == null) {
+                // the last segment can still be covered by a "/*" on node
+                return end == length && ((granted | node.children) & mask) == mask;
+            }
+            parent = node;
+            node = child;
+            start = end + 1;
+        }
+        granted |= node.exact;
+        if (parent != null) {
+            granted |= parent.children;
+        }
+        return (granted & mask) == mask;
+    }
+
+    /** true if {@code name} starts at the root, has no empty, "." or ".." segments and is no wildcard */
+    static boolean isNormalizedAbsolute(String name) {
+        final int length = name.length();
+        if (length == 0 || name.charAt(0) != '/') {
+            return false;
+        }
+        if (length == 1) {
+            return true;
+        }
+        int start = 1;
+        while (start <= length) {
+            int end = name.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            int segment = end - start;
+            if (segment == 0) {
+                return false;
+            }
+            char first = name.charAt(start);
+            if (first == '.' && (segment == 1 || (segment == 2 && name.charAt(start + 1) == '.'))) {
+                return false;
+            }
+            if (end == length && segment == 1 && (first == '-' || first == '*')) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the canonical actions string of a file permission ({@link FilePermission#getActions()}
+     * always returns a comma separated subset, no whitespace) without allocating. Returns -1 for
+     * anything else.
+     */
+    static int actionMask(String actions) {
+        int mask = 0;
+        int start = 0;
+        final int length = actions.length();
+        while (start < length) {
+            int end = actions.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int segment = end - start;
+            if (segment == 4 && actions.regionMatches(start, "read", 0, 4)) {
+                mask |= READ;
+            } else if (segment == 5 && actions.regionMatches(start, "write", 0, 5)) {
+                mask |= WRITE;
+            } else if (segment == 6 && actions.regionMatches(start, "delete", 0, 6)) {
+                mask |= DELETE;
+            } else if (segment == 7 && actions.regionMatches(start, "execute", 0, 7)) {
+                mask |= EXECUTE;
+            } else if (segment == 8 && actions.regionMatches(start, "readlink", 0, 8)) {
+                mask |= READLINK;
+            } else {
+                return -1;
+            }
+            start = end + 1;
+        }
+        return mask;
+    }
+
+    /** a path segment, with the actions granted on itself and below it */
+    static final class Node {
+        static final int EXACT = 0;
+        static final int CHILDREN = 1;
+        static final int RECURSIVE = 2;
+
+        final String segment;
+        final int hash;
+        /** actions granted on this exact path */
+        int exact;
+        /** actions granted on the direct children ("path/*") */
+        int children;
+        /** actions granted on everything below ("path/-") */
+        int recursive;
+
+        // open addressing, linear probing, power of two size
+        private Node[] table = new Node[4];
+        private int size;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.hash = segment.hashCode();
+        }
+
+        void grant(int kind, int mask) {
+            switch (kind) {
+                case EXACT: exact |= mask; break;
+                case CHILDREN: children |= mask; break;
+                case RECURSIVE: recursive |= mask; break;
+                default: throw new IllegalArgumentException("unknown kind [" + kind + "]");
+            }
+        }
+
+        /** looks up the child named {@code name[start, end)}, without creating a string for it */
+        Node child(String name, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + name.charAt(i);
+            }
+            final int length = end - start;
+            final int mask = table.length - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                Node candidate = table[i];
+                if (candidate == null) {
+                    return null;
+                }
+                if (candidate.hash == hash && candidate.segment.length() == length
+                        && name.regionMatches(start, candidate.segment, 0, length)) {
+                    return candidate;
+                }
+            }
+        }
+
+        Node childOrCreate(String name) {
+            Node existing = child(name, 0, name.length());
+            if (existing != null) {
+                return existing;
+            }
+            if ((size + 1) * 2 > table.length) {
+                Node[] old = table;
+                table = new Node[old.length * 2];
+                for (Node node : old) {
+                    if (node != null) {
+                        insert(node);
+                    }
+                }
+            }
+            Node child = new Node(name);
+            insert(child);
+            size++;
+            return child;
+        }
+
+        private void insert(Node node) {
+            final int mask = table.length - 1;
+            int i = spread(node.hash) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.Policy;
+import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.security.SecurityPermission;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PropertyPermission;
+
+/**
+ * The policy of a single plugin, parsed the first time one of its jars is checked.
+ * <p>
+ * Parsing happens inside a permission check, so it runs privileged, limited to
+ * {@link #LOADER_PERMISSIONS}: any other check the parser triggers still sees the code that is
+ * being checked. The policy file is read by the jdk's own (privileged) policy implementation.
+ */
+final class PluginPolicy extends Policy {
+
+    private static final ESLogger logger = Loggers.getLogger(PluginPolicy.class);
+
+    /** what parsing a plugin policy needs: the codebase properties and the jdk's policy implementation */
+    static final PermissionCollection LOADER_PERMISSIONS;
+    static {
+        Permissions permissions = new Permissions();
+        permissions.add(new PropertyPermission("codebase.*", "read,write"));
+        permissions.add(new SecurityPermission("createPolicy.JavaPolicy"));
+        permissions.setReadOnly();
+        LOADER_PERMISSIONS = permissions;
+    }
+
+    final String name;
+    final Path policyFile;
+    final URL[] codebases;
+
+    // permissions granted to each of the plugin's jars, keyed on URL#getFile like the plugin map
+    private volatile Map<String,PermissionCollection> permissions;
+
+    PluginPolicy(String name, Path policyFile, URL[] codebases) {
+        this.name = name;
+        this.policyFile = policyFile;
+        this.codebases = codebases;
+    }
+
+    @Override @SuppressForbidden(reason = "fast equals check is desired")
+    public boolean implies(ProtectionDomain domain, Permission permission) {
+        CodeSource codeSource = domain.getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) {
+            return false;
+        }
+        PermissionCollection granted = permissions().get(codeSource.getLocation().getFile());
+        return granted != null && granted.implies(permission);
+    }
+
+    private Map<String,PermissionCollection> permissions() {
+        Map<String,PermissionCollection> result = permissions;
+        if (result == null) {
+            synchronized (this) {
+                result = permissions;
+                if (result == null) {
+                    permissions = result = AccessController.doPrivileged(new PrivilegedAction<Map<String,PermissionCollection>>() {
+                        @Override
+                        public Map<String,PermissionCollection> run() {
+                            return load();
+                        }
+                    }, null, loaderPermissions());
+                }
+            }
+        }
+        return result;
+    }
+
+    /** {@link #LOADER_PERMISSIONS} as an array, for a limited doPrivileged */
+    private static Permission[] loaderPermissions() {
+        return Collections.list(LOADER_PERMISSIONS.elements()).toArray(new Permission[0]);
+    }
+
+    @SuppressForbidden(reason = "proper use of URL")
+    private Map<String,PermissionCollection> load() {
+        logger.debug("parsing policy of plugin [{}]", name);
+        Policy policy;
+        try {
+            policy = Security.readPolicy(policyFile.toUri().toURL(), codebases);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to read policy file `" + policyFile + "` of plugin [" + name + "]", e);
+        }
+        Map<String,PermissionCollection> result = new HashMap<>();
+        for (URL url : codebases) {
+            result.put(url.getFile(), policy.getPermissions(new CodeSource(url, (Certificate[]) null)));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
@@ -0,0 +1,315 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestFilter;
+import org.elasticsearch.rest.RestFilterChain;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the kernel's pressure stall information ({@code /proc/pressure/*}, linux 4.20+) and the
+ * process' {@code /proc/self/status} at a fixed interval, and sheds low priority work while the
+ * node is under pressure.
+ * <p>
+ * The pressure of a resource is the share of time some task stalled waiting for it. Per resource
+ * the stats show the kernel's rolling averages over 10, 60 and 300 seconds, and the share of the
+ * last interval. Once the 10 second average of a resource reaches its threshold
+ * ({@value Bootstrap#PRESSURE_SHED_SETTING_PREFIX}{@code <cpu|memory|io>}, in percent), http
+ * requests to the {@link #SHED_ENDPOINTS} are turned away with a 429 until it drops below
+ * {@link #RECOVERY_RATIO} of the threshold again, or can no longer be sampled. Clients retry those
+ * like rejected executions, and searches keep the cpu, memory and disk to themselves in the
+ * meantime. Writes replicated from other nodes are never shed, failing them would fail the
+ * replicas.
+ */
+final class PressureMonitor implements Runnable, ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(PressureMonitor.class);
+
+    static final String PRESSURE_PATH = "/proc/pressure";
+    static final List<String> RESOURCES = Arrays.asList("cpu", "memory", "io");
+    /** the endpoints shed under pressure: bulk writes and the by-query and reindex jobs */
+    static final List<String> SHED_ENDPOINTS = Arrays.asList("_bulk", "_reindex", "_update_by_query", "_delete_by_query");
+    /** shedding stops below this share of the threshold, so it doesn't flap around it */
+    static final double RECOVERY_RATIO = 0.8;
+    /** the fields of /proc/self/status that are sampled, with the name they are shown as */
+    static final Map<String,String> STATUS_FIELDS;
+    static {
+        Map<String,String> m = new LinkedHashMap<>();
+        m.put("VmRSS", "rss_in_bytes");
+        m.put("VmSwap", "swap_in_bytes");
+        m.put("Threads", "threads");
+        m.put("voluntary_ctxt_switches", "voluntary_context_switches");
+        m.put("nonvoluntary_ctxt_switches", "involuntary_context_switches");
+        STATUS_FIELDS = Collections.unmodifiableMap(m);
+    }
+
+    /** one line of a pressure file, like {@code some avg10=1.53 avg60=0.87 avg300=0.22 total=58761459} */
+    static final class Pressure {
+        final double avg10;
+        final double avg60;
+        final double avg300;
+        final long totalMicros;
+
+        Pressure(double avg10, double avg60, double avg300, long totalMicros) {
+            this.avg10 = avg10;
+            this.avg60 = avg60;
+            this.avg300 = avg300;
+            this.totalMicros = totalMicros;
+        }
+
+        /** parses the fields after the some/full prefix, returns null if the line has another format */
+        static Pressure parse(String[] fields) {
+            Map<String,String> values = new HashMap<>();
+            for (int i = 1; i < fields.length; i++) {
+                String[] pair = fields[i].split("=", 2);
+                if (pair.length == 2) {
+                    values.put(pair[0], pair[1]);
+                }
+            }
+            if (values.keySet().containsAll(Arrays.asList("avg10", "avg60", "avg300", "total")) == false) {
+                return null;
+            }
+            return new Pressure(Double.parseDouble(values.get("avg10")), Double.parseDouble(values.get("avg60")),
+                    Double.parseDouble(values.get("avg300")), Long.parseLong(values.get("total")));
+        }
+    }
+
+    /** the last sample of a resource */
+    private static final class Sample {
+        final long nanoTime;
+        /** keyed by some and full */
+        final Map<String,Pressure> pressures;
+        /** share of the interval before this sample, in percent, keyed like {@link #pressures} */
+        final Map<String,Double> lastInterval;
+
+        Sample(long nanoTime, Map<String,Pressure> pressures, Map<String,Double> lastInterval) {
+            this.nanoTime = nanoTime;
+            this.pressures = pressures;
+            this.lastInterval = lastInterval;
+        }
+    }
+
+    final TimeValue interval;
+    /** shedding threshold in percent by resource, only resources that shed are in here */
+    private final Map<String,Double> thresholds;
+
+    // written by the monitor, read by stats and the rest filter
+    private volatile Map<String,Sample> samples = Collections.emptyMap();
+    private volatile Map<String,Long> status = Collections.emptyMap();
+    /** the resource that started shedding, null while not shedding */
+    private volatile String shedding;
+    private volatile long sheddingSinceMillis;
+    private final AtomicLong rejected = new AtomicLong();
+
+    PressureMonitor(TimeValue interval, Map<String,Double> thresholds) {
+        if (interval.millis() <= 0) {
+            throw new IllegalArgumentException("[" + Bootstrap.PRESSURE_INTERVAL_SETTING + "] must be > 0, got [" + interval + "]");
+        }
+        for (Map.Entry<String,Double> threshold : thresholds.entrySet()) {
+            if (RESOURCES.contains(threshold.getKey()) == false) {
+                throw new IllegalArgumentException("unknown resource [" + Bootstrap.PRESSURE_SHED_SETTING_PREFIX + threshold.getKey()
+                        + "], expected one of " + RESOURCES);
+            }
+            if (threshold.getValue() <= 0 || threshold.getValue() > 100) {
+                throw new IllegalArgumentException("[" + Bootstrap.PRESSURE_SHED_SETTING_PREFIX + threshold.getKey()
+                        + "] must be a percentage > 0 and <= 100, got [" + threshold.getValue() + "]");
+            }
+        }
+        this.interval = interval;
+        this.thresholds = Collections.unmodifiableMap(thresholds);
+    }
+
+    /** null if disabled */
+    static PressureMonitor fromSettings(Settings settings) {
+        if (settings.getAsBoolean(Bootstrap.PRESSURE_ENABLED_SETTING, true) == false) {
+            return null;
+        }
+        Map<String,Double> thresholds = new HashMap<>();
+        for (Map.Entry<String,String> entry : settings.getByPrefix(Bootstrap.PRESSURE_SHED_SETTING_PREFIX).getAsMap().entrySet()) {
+            try {
+                thresholds.put(entry.getKey(), Double.parseDouble(entry.getValue()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("[" + Bootstrap.PRESSURE_SHED_SETTING_PREFIX + entry.getKey()
+                        + "] must be a percentage, got [" + entry.getValue() + "]", e);
+            }
+        }
+        return new PressureMonitor(settings.getAsTime(Bootstrap.PRESSURE_INTERVAL_SETTING, TimeValue.timeValueSeconds(1)), thresholds);
+    }
+
+    /** turns the {@link #SHED_ENDPOINTS} away while shedding */
+    void registerFilter(RestController controller) {
+        if (thresholds.isEmpty()) {
+            return;
+        }
+        controller.registerFilter(new RestFilter() {
+            @Override
+            public void process(RestRequest request, RestChannel channel, RestFilterChain filterChain) throws Exception {
+                String resource = shedding;
+                if (resource != null && shed(request.rawPath())) {
+                    rejected.incrementAndGet();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.TOO_MANY_REQUESTS, "node is under " + resource
+                            + " pressure, retry later"));
+                } else {
+                    filterChain.continueProcessing(request, channel);
+                }
+            }
+        });
+    }
+
+    /** whether a request to {@code path} is shed under pressure */
+    static boolean shed(String path) {
+        for (String segment : path.split("/")) {
+            if (SHED_ENDPOINTS.contains(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        Map<String,Sample> previous = samples;
+        Map<String,Sample> next = new HashMap<>();
+        for (String resource : RESOURCES) {
+            Map<String,Pressure> pressures = new HashMap<>();
+            for (String line : ProcFiles.lines(PathUtils.get(PRESSURE_PATH, resource))) {
+                String[] fields = line.trim().split("\\s+");
+                Pressure pressure = Pressure.parse(fields);
+                if (pressure != null) {
+                    pressures.put(fields[0], pressure);
+                }
+            }
+            if (pressures.isEmpty()) {
+                // no psi in this kernel, or it is booted with psi=0
+                continue;
+            }
+            Map<String,Double> lastInterval = new HashMap<>();
+            Sample before = previous.get(resource);
+            if (before != null && now > before.nanoTime) {
+                for (Map.Entry<String,Pressure> pressure : pressures.entrySet()) {
+                    Pressure was = before.pressures.get(pressure.getKey());
+                    if (was != null) {
+                        // total is in micros, the interval in nanos
+                        lastInterval.put(pressure.getKey(),
+                                100d * (pressure.getValue().totalMicros - was.totalMicros) * 1000 / (now - before.nanoTime));
+                    }
+                }
+            }
+            next.put(resource, new Sample(now, pressures, lastInterval));
+        }
+        samples = Collections.unmodifiableMap(next);
+        status = readStatus();
+        updateShedding(next);
+    }
+
+    private void updateShedding(Map<String,Sample> current) {
+        String resource = shedding;
+        if (resource != null) {
+            double pressure = some(current.get(resource));
+            if (pressure < 0) {
+                // unreadable or gone (a cgroup going away): without a sample nothing would ever end it
+                logger.warn("[{}] pressure can no longer be sampled, no longer shedding {}", resource, SHED_ENDPOINTS);
+                shedding = null;
+            } else if (pressure < thresholds.get(resource) * RECOVERY_RATIO) {
+                logger.info("[{}] pressure down to [{}%], no longer shedding {}", resource, pressure, SHED_ENDPOINTS);
+                shedding = null;
+            }
+            return;
+        }
+        for (Map.Entry<String,Double> threshold : thresholds.entrySet()) {
+            double pressure = some(current.get(threshold.getKey()));
+            if (pressure >= threshold.getValue()) {
+                logger.warn("[{}] pressure at [{}%], shedding {} until it drops below [{}%]", threshold.getKey(), pressure, SHED_ENDPOINTS,
+                        threshold.getValue() * RECOVERY_RATIO);
+                sheddingSinceMillis = System.currentTimeMillis();
+                shedding = threshold.getKey();
+                return;
+            }
+        }
+    }
+
+    /** the 10 second average of some tasks stalling, -1 if unknown */
+    private static double some(Sample sample) {
+        if (sample == null || sample.pressures.containsKey("some") == false) {
+            return -1;
+        }
+        return sample.pressures.get("some").avg10;
+    }
+
+    private static Map<String,Long> readStatus() {
+        Map<String,Long> values = new LinkedHashMap<>();
+        for (String line : ProcFiles.lines(PathUtils.get("/proc/self/status"))) {
+            // VmRSS:	  123456 kB
+            String[] parts = line.split(":\\s+", 2);
+            if (parts.length == 2 && STATUS_FIELDS.containsKey(parts[0])) {
+                String[] value = parts[1].trim().split("\\s+");
+                long number = Long.parseLong(value[0]);
+                values.put(STATUS_FIELDS.get(parts[0]), value.length > 1 && "kB".equals(value[1]) ? number * 1024 : number);
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("interval", interval.toString());
+        Map<String,Sample> current = samples;
+        for (String resource : RESOURCES) {
+            Sample sample = current.get(resource);
+            if (sample == null) {
+                continue;
+            }
+            builder.startObject(resource);
+            for (Map.Entry<String,Pressure> pressure : sample.pressures.entrySet()) {
+                builder.startObject(pressure.getKey());
+                builder.field("avg10", pressure.getValue().avg10);
+                builder.field("avg60", pressure.getValue().avg60);
+                builder.field("avg300", pressure.getValue().avg300);
+                builder.field("total_micros", pressure.getValue().totalMicros);
+                Double lastInterval = sample.lastInterval.get(pressure.getKey());
+                if (lastInterval != null) {
+                    builder.field("last_interval", lastInterval);
+                }
+                builder.endObject();
+            }
+            if (thresholds.containsKey(resource)) {
+                builder.field("shed_threshold", thresholds.get(resource));
+            }
+            builder.endObject();
+        }
+        builder.startObject("process");
+        for (Map.Entry<String,Long> value : status.entrySet()) {
+            builder.field(value.getKey(), value.getValue());
+        }
+        builder.endObject();
+        builder.startObject("shedding");
+        String resource = shedding;
+        builder.field("active", resource != null);
+        if (resource != null) {
+            builder.field("resource", resource);
+            builder.field("since_millis", sheddingSinceMillis);
+        }
+        builder.field("rejected", rejected.get());
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,66 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the small text files of procfs and sysfs. They may be missing (other kernels, other
+ * operating systems, containers), so reads never fail: they return null or an empty list.
+ */
+final class ProcFiles {
+
+    static final String SMAPS = "/proc/self/smaps";
+    static final String SMAPS_ROLLUP = "/proc/self/smaps_rollup";
+
+    /** files read while the node runs, after the security manager is installed */
+    static final List<String> NODE_READABLE = Arrays.asList(ProcMaps.MAPS, "/proc/self/status", SMAPS, SMAPS_ROLLUP,
+            Cgroup.ROOT + "/-", PressureMonitor.PRESSURE_PATH + "/-");
+
+    /** no instantiation */
+    private ProcFiles() {}
+
+    /** the lines of {@code file}, empty if it can't be read */
+    static List<String> lines(Path file) {
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException | SecurityException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /** the first line of {@code file}, trimmed, or null if it can't be read */
+    static String line(String file) {
+        List<String> lines = lines(PathUtils.get(file));
+        return lines.isEmpty() ? null : lines.get(0).trim();
+    }
+
+    /** the first line of {@code file} as a number, or null if it can't be read or isn't one */
+    static Long number(String file) {
+        String line = line(file);
+        if (line == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(line);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** the selected value of a sysfs choice like {@code always [madvise] never}, or the whole line if none is */
+    static String selected(String line) {
+        if (line == null) {
+            return null;
+        }
+        int start = line.indexOf('[');
+        int end = line.indexOf(']', start + 1);
+        return start >= 0 && end > start ? line.substring(start + 1, end) : line;
+    }
+}
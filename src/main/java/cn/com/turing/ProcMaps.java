@@ -0,0 +1,188 @@
+package cn.com.turing;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The memory mappings of the current process, from {@code /proc/self/maps}. Empty where that
+ * file does not exist.
+ */
+final class ProcMaps {
+
+    static final String MAPS = "/proc/self/maps";
+
+    /** no instantiation */
+    private ProcMaps() {}
+
+    /** a line of the maps file */
+    static final class Mapping {
+        final long start;
+        final long end;
+        final String permissions;
+        /** offset into the file */
+        final long offset;
+        /** file, {@code [stack]} and friends, or empty for anonymous memory */
+        final String path;
+
+        Mapping(long start, long end, String permissions, long offset, String path) {
+            this.start = start;
+            this.end = end;
+            this.permissions = permissions;
+            this.offset = offset;
+            this.path = path;
+        }
+
+        long length() {
+            return end - start;
+        }
+
+        boolean anonymous() {
+            return path.isEmpty();
+        }
+    }
+
+    /** the current mappings, ordered by address */
+    static List<Mapping> read() {
+        List<Mapping> mappings = new ArrayList<>();
+        for (String line : ProcFiles.lines(PathUtils.get(MAPS))) {
+            Mapping mapping = parse(line);
+            if (mapping != null) {
+                mappings.add(mapping);
+            }
+        }
+        return mappings;
+    }
+
+    /** the current mappings of files below any of {@code dirs}: the index files, for the data paths */
+    static List<Mapping> filesBelow(Path[] dirs) {
+        List<String> prefixes = new ArrayList<>();
+        for (Path dir : dirs) {
+            prefixes.add(prefix(dir));
+        }
+        List<Mapping> mappings = new ArrayList<>();
+        for (Mapping mapping : read()) {
+            if (mapping.anonymous() == false && startsWithAny(mapping.path, prefixes)) {
+                mappings.add(mapping);
+            }
+        }
+        return mappings;
+    }
+
+    /**
+     * What the paths of files mapped from below {@code dir} start with: the kernel shows them with
+     * symlinks resolved, so a data path behind a link would match nothing as configured.
+     */
+    static String prefix(Path dir) {
+        return realPath(dir) + PathUtils.getDefaultFileSystem().getSeparator();
+    }
+
+    private static String realPath(Path path) {
+        try {
+            return path.toRealPath().toString();
+        } catch (IOException e) {
+            return path.toAbsolutePath().normalize().toString();
+        }
+    }
+
+    private static boolean startsWithAny(String path, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** 7f2c4c000000-7f2c4c021000 rw-p 00000000 00:00 0    [path], or null if the line isn't one */
+    static Mapping parse(String line) {
+        String[] fields = line.trim().split("\\s+", 6);
+        if (fields.length < 5) {
+            return null;
+        }
+        int dash = fields[0].indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start = Long.parseUnsignedLong(fields[0].substring(0, dash), 16);
+            long end = Long.parseUnsignedLong(fields[0].substring(dash + 1), 16);
+            long offset = Long.parseUnsignedLong(fields[2], 16);
+            return new Mapping(start, end, fields[1], offset, fields.length == 6 ? fields[5] : "");
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** start and end address of the java heap, or null if it can't be found. see {@link #javaHeap(List, long, long)} */
+    static long[] javaHeap() {
+        return javaHeap(read(), maxHeapSize(), compressedClassSpaceSize());
+    }
+
+    /** the size of the heap's reservation: -Xmx, as aligned by the jvm */
+    static long maxHeapSize() {
+        try {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return Long.parseLong(hotspot.getVMOption("MaxHeapSize").getValue());
+        } catch (RuntimeException e) {
+            // not hotspot. the max memory leaves out a survivor space, so the heap won't be found
+            return Runtime.getRuntime().maxMemory();
+        }
+    }
+
+    /** the size of the compressed class space, 0 if there is none or it is unknown */
+    static long compressedClassSpaceSize() {
+        try {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (Boolean.parseBoolean(hotspot.getVMOption("UseCompressedClassPointers").getValue()) == false) {
+                return 0;
+            }
+            return Long.parseLong(hotspot.getVMOption("CompressedClassSpaceSize").getValue());
+        } catch (RuntimeException e) {
+            // not hotspot, or older than java 8
+            return 0;
+        }
+    }
+
+    /**
+     * Finds the java heap: the jvm reserves it as a single anonymous range of the maximum heap
+     * size, parts of it committed (read-write) and the rest reserved (no access). The kernel merges
+     * adjacent anonymous mappings of the same kind, so a run of adjacent anonymous mappings only
+     * pins the heap down if its size leaves no choice: exactly {@code maxHeap} bytes, or the heap
+     * with the compressed class space of {@code classSpace} bytes reserved right behind it (java 8
+     * on 64 bit). A run with anything else next to the heap is ambiguous, and guessing would lock,
+     * advise or bind memory that isn't the heap, so then the heap is not found.
+     *
+     * @return start and end address of the heap, or null if no run, or more than one, matches
+     */
+    static long[] javaHeap(List<Mapping> mappings, long maxHeap, long classSpace) {
+        long[] found = null;
+        int i = 0;
+        while (i < mappings.size()) {
+            if (mappings.get(i).anonymous() == false) {
+                i++;
+                continue;
+            }
+            long start = mappings.get(i).start;
+            long end = mappings.get(i).end;
+            i++;
+            while (i < mappings.size() && mappings.get(i).anonymous() && mappings.get(i).start == end) {
+                end = mappings.get(i).end;
+                i++;
+            }
+            if (end - start == maxHeap || (classSpace > 0 && end - start == maxHeap + classSpace)) {
+                if (found != null) {
+                    return null;
+                }
+                found = new long[] { start, start + maxHeap };
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,76 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The memory mappings of a process with their resident and swapped sizes, from
+ * {@code /proc/<pid>/smaps}, and the totals of all of them from {@code smaps_rollup} (linux 4.14+).
+ * Reading smaps walks the page tables of every mapping, so with many mmapped index files it is
+ * far more expensive than reading maps.
+ */
+final class ProcSmaps {
+
+    /** no instantiation */
+    private ProcSmaps() {}
+
+    /** a mapping with its sizes, in bytes */
+    static final class Region {
+        final ProcMaps.Mapping mapping;
+        long rss;
+        long pss;
+        long swap;
+
+        Region(ProcMaps.Mapping mapping) {
+            this.mapping = mapping;
+        }
+    }
+
+    /** the regions of the smaps file {@code file}, ordered by address. empty if it can't be read */
+    static List<Region> read(String file) {
+        List<Region> regions = new ArrayList<>();
+        Region current = null;
+        for (String line : ProcFiles.lines(PathUtils.get(file))) {
+            ProcMaps.Mapping mapping = ProcMaps.parse(line);
+            if (mapping != null) {
+                current = new Region(mapping);
+                regions.add(current);
+            } else if (current != null) {
+                // Rss:                 132 kB
+                if (line.startsWith("Rss:")) {
+                    current.rss = kiloBytes(line);
+                } else if (line.startsWith("Pss:")) {
+                    current.pss = kiloBytes(line);
+                } else if (line.startsWith("Swap:")) {
+                    current.swap = kiloBytes(line);
+                }
+            }
+        }
+        return regions;
+    }
+
+    /** the totals of the smaps_rollup file {@code file} in bytes, keyed by field (Rss, Pss, Anonymous, Swap...) */
+    static Map<String,Long> rollup(String file) {
+        Map<String,Long> totals = new HashMap<>();
+        for (String line : ProcFiles.lines(PathUtils.get(file))) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.endsWith(" kB")) {
+                totals.put(line.substring(0, colon), kiloBytes(line));
+            }
+        }
+        return totals;
+    }
+
+    private static long kiloBytes(String line) {
+        String[] fields = line.substring(line.indexOf(':') + 1).trim().split("\\s+");
+        try {
+            return Long.parseLong(fields[0]) * 1024;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resource limits the node depends on: open files, processes (threads count against it on
+ * linux), locked memory and address space.
+ * <p>
+ * If enabled, the soft limits are raised to the hard limits at startup, an unprivileged process
+ * may do that. Limits with a configured minimum are then checked, and startup fails if one stays
+ * below it: a node with too few file descriptors fails merges long after it started.
+ */
+final class ResourceLimits implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(ResourceLimits.class);
+
+    /** a resource of getrlimit/setrlimit */
+    static final class Limit {
+        final String name;
+        final int resource;
+        /** whether the limit is in bytes, otherwise it is a count */
+        final boolean bytes;
+
+        Limit(String name, int resource, boolean bytes) {
+            this.name = name;
+            this.resource = resource;
+            this.bytes = bytes;
+        }
+    }
+
+    static final List<Limit> LIMITS = Arrays.asList(
+            new Limit("open_files", JNACLibrary.RLIMIT_NOFILE, false),
+            new Limit("processes", JNACLibrary.RLIMIT_NPROC, false),
+            new Limit("memlock", JNACLibrary.RLIMIT_MEMLOCK, true),
+            new Limit("address_space", JNACLibrary.RLIMIT_AS, true));
+
+    static final String UNLIMITED = "unlimited";
+
+    private final boolean raise;
+    /** minimum soft limit by limit name, {@link JNACLibrary#RLIM_INFINITY} for unlimited */
+    private final Map<String,Long> minimums;
+
+    // soft and hard limits before and after raising them, by limit name. written by apply()
+    private final Map<String,long[]> before = new LinkedHashMap<>();
+    private final Map<String,long[]> after = new LinkedHashMap<>();
+
+    ResourceLimits(boolean raise, Map<String,Long> minimums) {
+        this.raise = raise;
+        this.minimums = minimums;
+    }
+
+    /** reads {@link Bootstrap#RLIMITS_RAISE_SETTING} and the minimums below {@link Bootstrap#RLIMITS_MIN_SETTING_PREFIX} */
+    static ResourceLimits fromSettings(Settings settings) {
+        Settings configured = settings.getByPrefix(Bootstrap.RLIMITS_MIN_SETTING_PREFIX);
+        Map<String,Long> minimums = new LinkedHashMap<>();
+        for (Limit limit : LIMITS) {
+            String value = configured.get(limit.name);
+            if (value == null) {
+                continue;
+            }
+            String key = Bootstrap.RLIMITS_MIN_SETTING_PREFIX + limit.name;
+            if (UNLIMITED.equals(value)) {
+                minimums.put(limit.name, JNACLibrary.RLIM_INFINITY);
+            } else if (limit.bytes) {
+                minimums.put(limit.name, ByteSizeValue.parseBytesSizeValue(value, key).bytes());
+            } else {
+                try {
+                    minimums.put(limit.name, Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("[" + key + "] must be a number or [" + UNLIMITED + "], got [" + value + "]", e);
+                }
+            }
+        }
+        for (String name : configured.names()) {
+            if (minimums.containsKey(name) == false) {
+                throw new IllegalArgumentException("unknown resource limit [" + Bootstrap.RLIMITS_MIN_SETTING_PREFIX + name + "]");
+            }
+        }
+        return new ResourceLimits(settings.getAsBoolean(Bootstrap.RLIMITS_RAISE_SETTING, false), minimums);
+    }
+
+    /**
+     * Raises the soft limits if enabled, logs what changed, and checks the minimums.
+     *
+     * @throws IllegalStateException if a limit is below its configured minimum
+     */
+    void apply() {
+        for (Limit limit : LIMITS) {
+            long[] current = Natives.getrlimit(limit.resource);
+            if (current == null) {
+                if (minimums.containsKey(limit.name)) {
+                    logger.warn("unable to check the [{}] limit on this platform", limit.name);
+                }
+                continue;
+            }
+            before.put(limit.name, current);
+            if (raise && Long.compareUnsigned(current[0], current[1]) < 0) {
+                long[] raised = Natives.raiseRlimit(limit.resource);
+                if (raised != null && raised[0] != current[0]) {
+                    logger.info("raised [{}] soft limit from [{}] to [{}]", limit.name, JNANatives.rlimitToString(current[0]),
+                            JNANatives.rlimitToString(raised[0]));
+                    current = raised;
+                }
+            } else {
+                logger.debug("[{}] limits: soft [{}], hard [{}]", limit.name, JNANatives.rlimitToString(current[0]),
+                        JNANatives.rlimitToString(current[1]));
+            }
+            after.put(limit.name, current);
+            Long minimum = minimums.get(limit.name);
+            // limits are unsigned, RLIM_INFINITY is the largest value on all platforms
+            if (minimum != null && Long.compareUnsigned(current[0], minimum) < 0) {
+                throw new IllegalStateException("[" + limit.name + "] soft limit [" + JNANatives.rlimitToString(current[0])
+                        + "] is below the configured minimum [" + JNANatives.rlimitToString(minimum) + "], hard limit is ["
+                        + JNANatives.rlimitToString(current[1]) + "]. raise it (e.g. in /etc/security/limits.conf)"
+                        + (raise ? "" : " or set [" + Bootstrap.RLIMITS_RAISE_SETTING + "] to raise the soft limit to the hard one"));
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("raise", raise);
+        for (Map.Entry<String,long[]> entry : after.entrySet()) {
+            builder.startObject(entry.getKey());
+            builder.field("soft", JNANatives.rlimitToString(entry.getValue()[0]));
+            builder.field("hard", JNANatives.rlimitToString(entry.getValue()[1]));
+            builder.field("raised_from", JNANatives.rlimitToString(before.get(entry.getKey())[0]));
+            Long minimum = minimums.get(entry.getKey());
+            if (minimum != null) {
+                builder.field("minimum", JNANatives.rlimitToString(minimum));
+            }
+            builder.endObject();
+        }
+        return builder;
+    }
+}
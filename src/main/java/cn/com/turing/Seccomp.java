@@ -175,7 +175,7 @@ final class Seccomp {
     }
 
     /** supported architectures map keyed by os.arch */
-    private static final Map<String, Seccomp.Arch> ARCHITECTURES;
+    static final Map<String, Seccomp.Arch> ARCHITECTURES;
     static {
         Map<String, Seccomp.Arch> m = new HashMap<String, Seccomp.Arch>();
         m.put("amd64", new Seccomp.Arch(0xC000003E, 0x3FFFFFFF, 57, 58, 59, 322, 317));
@@ -193,8 +193,28 @@ final class Seccomp {
         return linux_libc.syscall(new NativeLong(number), args).longValue();
     }
 
-    /** try to install our BPF filters via seccomp() or prctl() to block execution */
-    private static int linuxImpl() {
+    /** the BPF program installed for {@code arch}: check arch, limit, then syscall */
+    static Seccomp.SockFilter[] filter(Seccomp.Arch arch) {
+        // See https://www.kernel.org/doc/Documentation/prctl/seccomp_filter.txt for details.
+        return new Seccomp.SockFilter[] {
+          /* 1  */ BPF_STMT(BPF_LD  + BPF_W   + BPF_ABS, SECCOMP_DATA_ARCH_OFFSET),             //
+          /* 2  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.audit,     0, 7),                 // if (arch != audit) goto fail;
+          /* 3  */ BPF_STMT(BPF_LD  + BPF_W   + BPF_ABS, SECCOMP_DATA_NR_OFFSET),               //
+          /* 4  */ BPF_JUMP(BPF_JMP + BPF_JGT + BPF_K,   arch.limit,     5, 0),                 // if (syscall > LIMIT) goto fail;
+          /* 5  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.fork,      4, 0),                 // if (syscall == FORK) goto fail;
+          /* 6  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.vfork,     3, 0),                 // if (syscall == VFORK) goto fail;
+          /* 7  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.execve,    2, 0),                 // if (syscall == EXECVE) goto fail;
+          /* 8  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.execveat,  1, 0),                 // if (syscall == EXECVEAT) goto fail;
+          /* 9  */ BPF_STMT(BPF_RET + BPF_K, SECCOMP_RET_ALLOW),                                // pass: return OK;
+          /* 10 */ BPF_STMT(BPF_RET + BPF_K, SECCOMP_RET_ERRNO | (EACCES & SECCOMP_RET_DATA)),  // fail: return EACCES;
+        };
+    }
+
+    /**
+     * Checks that seccomp filters can be installed, without changing anything.
+     * Returns the architecture to build the filter for.
+     */
+    private static Seccomp.Arch linuxProbe() {
         // first be defensive: we can give nice errors this way, at the very least.
         // also, some of these security features get backported to old versions, checking kernel version here is a big no-no!
         final Seccomp.Arch arch = ARCHITECTURES.get(Constants.OS_ARCH);
@@ -296,6 +316,13 @@ final class Seccomp {
             }
         }
 
+        return arch;
+    }
+
+    /** try to install our BPF filters via seccomp() or prctl() to block execution */
+    private static int linuxImpl() {
+        final Seccomp.Arch arch = linuxProbe();
+
         // ok, now set PR_SET_NO_NEW_PRIVS, needed to be able to set a seccomp filter as ordinary user
         if (linux_prctl(PR_SET_NO_NEW_PRIVS, 1, 0, 0, 0) != 0) {
             throw new UnsupportedOperationException("prctl(PR_SET_NO_NEW_PRIVS): " + JNACLibrary.strerror(Native.getLastError()));
@@ -306,19 +333,7 @@ final class Seccomp {
             throw new UnsupportedOperationException("seccomp filter did not really succeed: prctl(PR_GET_NO_NEW_PRIVS): " + JNACLibrary.strerror(Native.getLastError()));
         }
 
-        // BPF installed to check arch, limit, then syscall. See https://www.kernel.org/doc/Documentation/prctl/seccomp_filter.txt for details.
-        Seccomp.SockFilter insns[] = {
-          /* 1  */ BPF_STMT(BPF_LD  + BPF_W   + BPF_ABS, SECCOMP_DATA_ARCH_OFFSET),             //
-          /* 2  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.audit,     0, 7),                 // if (arch != audit) goto fail;
-          /* 3  */ BPF_STMT(BPF_LD  + BPF_W   + BPF_ABS, SECCOMP_DATA_NR_OFFSET),               //
-          /* 4  */ BPF_JUMP(BPF_JMP + BPF_JGT + BPF_K,   arch.limit,     5, 0),                 // if (syscall > LIMIT) goto fail;
-          /* 5  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.fork,      4, 0),                 // if (syscall == FORK) goto fail;
-          /* 6  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.vfork,     3, 0),                 // if (syscall == VFORK) goto fail;
-          /* 7  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.execve,    2, 0),                 // if (syscall == EXECVE) goto fail;
-          /* 8  */ BPF_JUMP(BPF_JMP + BPF_JEQ + BPF_K,   arch.execveat,  1, 0),                 // if (syscall == EXECVEAT) goto fail;
-          /* 9  */ BPF_STMT(BPF_RET + BPF_K, SECCOMP_RET_ALLOW),                                // pass: return OK;
-          /* 10 */ BPF_STMT(BPF_RET + BPF_K, SECCOMP_RET_ERRNO | (EACCES & SECCOMP_RET_DATA)),  // fail: return EACCES;
-        };
+        Seccomp.SockFilter insns[] = filter(arch);
         // seccomp takes a long, so we pass it one explicitly to keep the JNA simple
         Seccomp.SockFProg prog = new Seccomp.SockFProg(insns);
         prog.write();
@@ -542,6 +557,28 @@ final class Seccomp {
         logger.debug("Windows ActiveProcessLimit initialization successful");
     }
 
+    /**
+     * Checks whether {@link #init} can be expected to succeed, without dropping anything. Linux is
+     * probed the same way {@link #init} does it, elsewhere only the native methods are checked.
+     *
+     * @throws UnsupportedOperationException with the reason, if syscall filtering is unavailable
+     */
+    static void probe() {
+        if (Constants.LINUX) {
+            linuxProbe();
+        } else if (Constants.MAC_OS_X) {
+            if (libc_mac == null) {
+                throw new UnsupportedOperationException("seatbelt unavailable: could not link methods. requires Leopard or above.");
+            }
+        } else if (Constants.SUN_OS) {
+            if (libc_solaris == null) {
+                throw new UnsupportedOperationException("priv_set unavailable: could not link methods. requires Solaris 10+");
+            }
+        } else if ((Constants.FREE_BSD || OPENBSD || Constants.WINDOWS) == false) {
+            throw new UnsupportedOperationException("syscall filtering not supported for OS: '" + Constants.OS_NAME + "'");
+        }
+    }
+
     /**
      * Attempt to drop the capability to execute for the process.
      * <p>
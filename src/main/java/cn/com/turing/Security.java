@@ -1,7 +1,6 @@
 package cn.com.turing;
 
 import org.elasticsearch.SecureSM;
-import org.elasticsearch.bootstrap.JarHell;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.SuppressForbidden;
 import org.elasticsearch.common.io.PathUtils;
@@ -25,7 +24,7 @@ import java.nio.file.Files;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
-import java.security.Permissions;
+import java.security.PermissionCollection;
 import java.security.Policy;
 import java.security.URIParameter;
 import java.util.ArrayList;
@@ -49,9 +48,25 @@ final class Security {
      * @param filterBadDefaults true if we should filter out bad java defaults in the system policy.
      */
     static void configure(Environment environment, boolean filterBadDefaults) throws Exception {
+        configure(environment, getPluginPermissions(environment), filterBadDefaults, 0, null);
+    }
+
+    /**
+     * Initializes SecurityManager for the environment, with plugin policies that were already parsed
+     * (e.g. concurrently with other startup work). Can only happen once!
+     * @param environment configuration for generating dynamic permissions
+     * @param pluginPolicies plugin policies as returned by {@link #getPluginPermissions(Environment)}
+     * @param filterBadDefaults true if we should filter out bad java defaults in the system policy.
+     * @param decisionCacheSize how many permission check decisions to remember, 0 to disable the cache.
+     * @param checkStats where to count permission checks, null to not count them.
+     */
+    static void configure(Environment environment, Map<String,Policy> pluginPolicies, boolean filterBadDefaults,
+                          int decisionCacheSize, SecurityCheckStats checkStats) throws Exception {
 
         // enable security policy: union of template and environment-based paths, and possibly plugin permissions
-        Policy.setPolicy(new ESPolicy(createPermissions(environment), getPluginPermissions(environment), filterBadDefaults));
+        ESPolicy policy = new ESPolicy(createPermissions(environment), pluginPolicies, filterBadDefaults, decisionCacheSize, checkStats);
+        Policy.setPolicy(policy);
+        BootstrapStats.register("security_manager", policy);
 
         // enable security manager
         System.setSecurityManager(new SecureSM());
@@ -61,8 +76,10 @@ final class Security {
     }
 
     /**
-     * Sets properties (codebase URLs) for policy files.
-     * we look for matching plugins and set URLs to fit
+     * Returns the policies of all plugins and modules, keyed on the codebase of each of their jars.
+     * <p>
+     * Only the jars are listed here, each policy file is parsed the first time one of its jars is
+     * checked, see {@link PluginPolicy}.
      */
     @SuppressForbidden(reason = "proper use of URL")
     static Map<String,Policy> getPluginPermissions(Environment environment) throws IOException, NoSuchAlgorithmException {
@@ -96,8 +113,9 @@ final class Security {
                     }
                 }
 
-                // parse the plugin's policy file into a set of permissions
-                Policy policy = readPolicy(policyFile.toUri().toURL(), codebases.toArray(new URL[codebases.size()]));
+                // the plugin's policy file is only parsed once one of these jars is checked
+                Policy policy = new PluginPolicy(plugin.getFileName().toString(), policyFile,
+                        codebases.toArray(new URL[codebases.size()]));
 
                 // consult this policy for each of the plugin's jars:
                 for (URL url : codebases) {
@@ -120,7 +138,8 @@ final class Security {
      * e.g. <code>${codebase.joda-convert-1.2.jar}</code> would map to full URL.
      */
     @SuppressForbidden(reason = "accesses fully qualified URLs to configure security")
-    static Policy readPolicy(URL policyFile, URL codebases[]) {
+    static synchronized Policy readPolicy(URL policyFile, URL codebases[]) {
+        // synchronized: the codebase properties are global, so two policies must never be parsed at the same time
         try {
             try {
                 // set codebase properties
@@ -142,8 +161,9 @@ final class Security {
     }
 
     /** returns dynamic Permissions to configured paths and bind ports */
-    static Permissions createPermissions(Environment environment) throws IOException {
-        Permissions policy = new Permissions();
+    static PermissionCollection createPermissions(Environment environment) throws IOException {
+        // file permissions are checked on every file access, index them by path
+        PermissionCollection policy = new PathTriePermissions();
         addClasspathPermissions(policy);
         addFilePermissions(policy, environment);
         addBindPermissions(policy, environment.settings());
@@ -152,10 +172,10 @@ final class Security {
 
     /** Adds access to classpath jars/classes for jar hell scan, etc */
     @SuppressForbidden(reason = "accesses fully qualified URLs to configure security")
-    static void addClasspathPermissions(Permissions policy) throws IOException {
+    static void addClasspathPermissions(PermissionCollection policy) throws IOException {
         // add permissions to everything in classpath
         // really it should be covered by lib/, but there could be e.g. agents or similar configured)
-        for (URL url : JarHell.parseClassPath()) {
+        for (URL url : JarHellCache.classPath()) {
             Path path;
             try {
                 path = PathUtils.get(url.toURI());
@@ -174,7 +194,7 @@ final class Security {
     /**
      * Adds access to all configurable paths.
      */
-    static void addFilePermissions(Permissions policy, Environment environment) {
+    static void addFilePermissions(PermissionCollection policy, Environment environment) {
         // read-only dirs
         addPath(policy, "path.home", environment.binFile(), "read,readlink");
         addPath(policy, "path.home", environment.libFile(), "read,readlink");
@@ -201,9 +221,33 @@ final class Security {
             // we just need permission to remove the file if its elsewhere.
             policy.add(new FilePermission(environment.pidFile().toString(), "delete"));
         }
+        // procfs files read by the native monitoring
+        for (String file : ProcFiles.NODE_READABLE) {
+            policy.add(new FilePermission(file, "read"));
+        }
+        // lifecycle files are created (through a temporary file next to them) and removed while the node runs
+        for (String setting : new String[] { Bootstrap.READINESS_FILE_SETTING, Bootstrap.STATE_FILE_SETTING }) {
+            Path file = NodeLifecycle.file(environment.settings(), setting);
+            if (file != null) {
+                policy.add(new FilePermission(file.toString(), "read,write,delete"));
+                policy.add(new FilePermission(file + NodeLifecycle.TMP_SUFFIX, "read,write,delete"));
+            }
+        }
     }
 
-    static void addBindPermissions(Permissions policy, Settings settings) throws IOException {
+    static void addBindPermissions(PermissionCollection policy, Settings settings) throws IOException {
+        if (LocalCluster.size(settings) > 1) {
+            // every node of a local cluster binds its own ports
+            for (Settings node : LocalCluster.allNodeSettings(settings)) {
+                addNodeBindPermissions(policy, node);
+            }
+        } else {
+            addNodeBindPermissions(policy, settings);
+        }
+    }
+
+    /** adds the http and transport ports of a single node */
+    private static void addNodeBindPermissions(PermissionCollection policy, Settings settings) {
         // http is simple
         String httpRange = settings.get("http.netty.port",
                 settings.get("http.port",
@@ -244,17 +288,25 @@ final class Security {
      * @param path the path itself
      * @param permissions set of filepermissions to grant to the path
      */
-    static void addPath(Permissions policy, String configurationName, Path path, String permissions) {
+    static void addPath(PermissionCollection policy, String configurationName, Path path, String permissions) {
         // paths may not exist yet, this also checks accessibility
+        ensurePathExists(configurationName, path);
+
+        // add each path twice: once for itself, again for files underneath it
+        policy.add(new FilePermission(path.toString(), permissions));
+        policy.add(new FilePermission(path.toString() + path.getFileSystem().getSeparator() + "-", permissions));
+    }
+
+    /**
+     * Ensures the directory configured by {@code configurationName} exists.
+     * @throws IllegalStateException if {@code path} exists, but is not a directory, not accessible, or broken symbolic link.
+     */
+    static void ensurePathExists(String configurationName, Path path) {
         try {
             ensureDirectoryExists(path);
         } catch (IOException e) {
             throw new IllegalStateException("Unable to access '" + configurationName + "' (" + path + ")", e);
         }
-
-        // add each path twice: once for itself, again for files underneath it
-        policy.add(new FilePermission(path.toString(), permissions));
-        policy.add(new FilePermission(path.toString() + path.getFileSystem().getSeparator() + "-", permissions));
     }
 
     /**
@@ -0,0 +1,120 @@
+package cn.com.turing;
+
+import org.elasticsearch.bootstrap.BootstrapInfo;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.security.Policy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the permission checks {@link ESPolicy} answers, per codebase: core (everything without
+ * a policy of its own), each plugin or module with a policy, and untrusted scripts.
+ * <p>
+ * Recording is meant for production use: the codebase is looked up in a map built up front,
+ * the counters are striped ({@link LongAdder}) and only one in {@code sampleRate} checks is timed,
+ * so a check allocates nothing and contends on nothing.
+ */
+final class SecurityCheckStats implements ToXContent {
+
+    static final String CORE = "core";
+    static final String UNTRUSTED = "untrusted";
+
+    /** counters of a single codebase */
+    static final class Counters {
+        final String name;
+        final LongAdder checks = new LongAdder();
+        final LongAdder denials = new LongAdder();
+        final LongAdder sampledChecks = new LongAdder();
+        final LongAdder sampledNanos = new LongAdder();
+
+        Counters(String name) {
+            this.name = name;
+        }
+    }
+
+    private final int sampleRate;
+    private final Counters core = new Counters(CORE);
+    private final Counters untrusted = new Counters(UNTRUSTED);
+    /** plugin counters keyed on URL#getFile of each jar, like the plugin policies */
+    private final Map<String,Counters> plugins = new HashMap<>();
+    /** every distinct counter, in name order */
+    private final Map<String,Counters> all = new TreeMap<>();
+
+    /**
+     * @param plugins plugin policies as returned by {@link Security#getPluginPermissions}
+     * @param sampleRate time one in this many checks, 0 to only count them
+     */
+    SecurityCheckStats(Map<String,Policy> plugins, int sampleRate) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("sample rate must be >= 0, got [" + sampleRate + "]");
+        }
+        this.sampleRate = sampleRate;
+        all.put(CORE, core);
+        all.put(UNTRUSTED, untrusted);
+        for (Map.Entry<String,Policy> entry : plugins.entrySet()) {
+            String name = entry.getValue() instanceof PluginPolicy ? ((PluginPolicy) entry.getValue()).name : entry.getKey();
+            Counters counters = all.get(name);
+            if (counters == null) {
+                counters = new Counters(name);
+                all.put(name, counters);
+            }
+            this.plugins.put(entry.getKey(), counters);
+        }
+    }
+
+    /** returns the counters for the codebase at {@code location} (URL#getFile), which may be null */
+    Counters counters(String location) {
+        if (location == null) {
+            return core;
+        }
+        if (BootstrapInfo.UNTRUSTED_CODEBASE.equals(location)) {
+            return untrusted;
+        }
+        Counters counters = plugins.get(location);
+        return counters == null ? core : counters;
+    }
+
+    /** returns true if the next check should be timed */
+    boolean sample() {
+        return sampleRate > 0 && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+    }
+
+    /** records a check, {@code nanos} is its duration or -1 if it was not sampled */
+    void record(Counters counters, boolean granted, long nanos) {
+        counters.checks.increment();
+        if (granted == false) {
+            counters.denials.increment();
+        }
+        if (nanos >= 0) {
+            counters.sampledChecks.increment();
+            counters.sampledNanos.add(nanos);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("checks");
+        builder.field("sample_rate", sampleRate);
+        for (Counters counters : all.values()) {
+            builder.startObject(counters.name);
+            builder.field("count", counters.checks.sum());
+            builder.field("denied", counters.denials.sum());
+            long sampled = counters.sampledChecks.sum();
+            builder.field("sampled", sampled);
+            if (sampled > 0) {
+                long nanos = counters.sampledNanos.sum();
+                builder.field("sampled_time_nanos", nanos);
+                builder.field("avg_time_nanos", nanos / sampled);
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,122 @@
+package cn.com.turing;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.RoutingNode;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.flush.ShardsSyncedFlushResult;
+import org.elasticsearch.indices.flush.SyncedFlushService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a synced flush on the primaries of the local node before it shuts down, so their copies
+ * share a sync id and the recovery after the restart can skip copying files and replaying the
+ * translog.
+ * <p>
+ * A synced flush fails while a shard still has indexing operations in flight, so failed shards are
+ * retried until they succeed or the time budget is used up. Shards that don't make it are just
+ * closed, and recover the usual way.
+ */
+final class ShutdownSyncedFlush {
+
+    private static final ESLogger logger = Loggers.getLogger(ShutdownSyncedFlush.class);
+
+    /** pause between attempts of the failed shards */
+    static final TimeValue RETRY_DELAY = TimeValue.timeValueMillis(200);
+
+    /** no instantiation */
+    private ShutdownSyncedFlush() {}
+
+    /** returns the number of local primaries that could not be flushed within {@code timeout} */
+    static int flushLocalPrimaries(ClusterService clusterService, SyncedFlushService syncedFlushService, TimeValue timeout)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + timeout.nanos();
+        List<ShardId> pending = localPrimaries(clusterService.state());
+        final int total = pending.size();
+        if (total == 0) {
+            return 0;
+        }
+        logger.info("synced flush of [{}] local primaries before shutdown", total);
+        int attempt = 0;
+        while (pending.isEmpty() == false) {
+            if (attempt++ > 0) {
+                if (System.nanoTime() + RETRY_DELAY.nanos() >= deadline) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.sleep(RETRY_DELAY.nanos());
+            }
+            pending = attempt(syncedFlushService, pending, deadline);
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        logger.info("synced flushed [{}] of [{}] local primaries in [{}]", total - pending.size(), total,
+                TimeValue.timeValueNanos(System.nanoTime() - start));
+        if (pending.isEmpty() == false) {
+            logger.warn("no synced flush for {} within [{}], they will recover from files", pending, timeout);
+        }
+        return pending.size();
+    }
+
+    /** flushes {@code shards} concurrently, returns the ones that failed or did not answer before {@code deadline} */
+    private static List<ShardId> attempt(SyncedFlushService syncedFlushService, List<ShardId> shards, long deadline)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(shards.size());
+        final Queue<ShardId> succeeded = new ConcurrentLinkedQueue<>();
+        for (final ShardId shardId : shards) {
+            syncedFlushService.attemptSyncedFlush(shardId, new ActionListener<ShardsSyncedFlushResult>() {
+                @Override
+                public void onResponse(ShardsSyncedFlushResult result) {
+                    if (result.failed()) {
+                        logger.debug("synced flush of {} failed: {}", shardId, result.failureReason());
+                    } else if (result.successfulShards() < result.totalShards()) {
+                        // the primary and some copies share the sync id, good enough: the others recover anyway
+                        logger.debug("synced flush of {} succeeded on [{}] of [{}] copies", shardId, result.successfulShards(),
+                                result.totalShards());
+                        succeeded.add(shardId);
+                    } else {
+                        succeeded.add(shardId);
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.debug("synced flush of {} failed", e, shardId);
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        List<ShardId> failed = new ArrayList<>(shards);
+        failed.removeAll(succeeded);
+        return failed;
+    }
+
+    /** the started primaries allocated to the local node */
+    static List<ShardId> localPrimaries(ClusterState state) {
+        List<ShardId> primaries = new ArrayList<>();
+        RoutingNode node = state.getRoutingNodes().node(state.nodes().localNodeId());
+        if (node == null) {
+            return primaries;
+        }
+        for (ShardRouting shard : node) {
+            if (shard.primary() && shard.active()) {
+                primaries.add(shard.shardId());
+            }
+        }
+        return primaries;
+    }
+}
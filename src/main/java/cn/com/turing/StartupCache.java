@@ -0,0 +1,135 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Small files that let startup skip work whose inputs did not change since the last boot.
+ * <p>
+ * Entries are keyed by the caller, usually on a digest of the inputs, so a stale entry is never
+ * read back: it just isn't found. Everything here is best effort, a broken or missing cache
+ * only means the work is done again.
+ * <p>
+ * The temp directory is shared with every other user and the keys are predictable, so an entry
+ * planted by someone else would skip the work for good. The directory is created readable and
+ * writable by its owner only, and ignored unless it is ours and nobody else can write to it.
+ */
+final class StartupCache {
+
+    /** directory (under {@code java.io.tmpdir}) holding the entries, only ever used if it is private to us */
+    static final String DIRECTORY_NAME = "turingsearch-startup-cache";
+
+    private static final ESLogger logger = Loggers.getLogger(StartupCache.class);
+
+    private final Path directory;
+
+    StartupCache(Path tmpDir) {
+        this.directory = tmpDir.resolve(DIRECTORY_NAME);
+    }
+
+    /** returns the entry for {@code key}, or null if there is none (or it can't be read) */
+    byte[] get(String key) {
+        try {
+            if (Files.exists(directory, LinkOption.NOFOLLOW_LINKS) == false || trusted() == false) {
+                return null;
+            }
+            return Files.readAllBytes(directory.resolve(key));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.debug("unable to read startup cache entry [{}]", e, key);
+            return null;
+        }
+    }
+
+    /** stores {@code value} for {@code key}, replacing any previous entry atomically */
+    void put(String key, byte[] value) {
+        try {
+            create();
+            if (trusted() == false) {
+                return;
+            }
+            Path tmp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(tmp, value);
+                Files.move(tmp, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            logger.debug("unable to write startup cache entry [{}]", e, key);
+        }
+    }
+
+    /** creates the directory for its owner only, unless it exists already */
+    private void create() throws IOException {
+        try {
+            if (Files.getFileAttributeView(directory.getParent(), PosixFileAttributeView.class) != null) {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectory(directory);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created by an earlier boot, or by someone else: trusted() tells
+        }
+    }
+
+    /** whether the directory is a real directory owned by us that no one else can write to */
+    private boolean trusted() throws IOException {
+        UserPrincipal us = directory.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        PosixFileAttributeView view = Files.getFileAttributeView(directory, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            // no posix permissions (windows), where the temp directory is per user anyway
+            if (Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS) && us.equals(Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS))) {
+                return true;
+            }
+            logger.warn("ignoring startup cache [{}], it is not a directory owned by [{}]", directory, us.getName());
+            return false;
+        }
+        PosixFileAttributes attributes = view.readAttributes();
+        Set<PosixFilePermission> permissions = attributes.permissions();
+        if (attributes.isDirectory() && us.equals(attributes.owner())
+                && permissions.contains(PosixFilePermission.GROUP_WRITE) == false
+                && permissions.contains(PosixFilePermission.OTHERS_WRITE) == false) {
+            return true;
+        }
+        logger.warn("ignoring startup cache [{}], it must be a directory owned by [{}] that only its owner can write to, got [{}] owned by [{}]",
+                directory, us.getName(), PosixFilePermissions.toString(permissions), attributes.owner().getName());
+        return false;
+    }
+
+    /** returns a new SHA-1 digest, used to derive keys from the inputs of the cached work */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-1 is required to be supported by every jvm", e);
+        }
+    }
+
+    /** lowercase hex of {@code bytes}, safe to use as a file name */
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,197 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each startup phase takes, from {@code main} until the node is started.
+ * <p>
+ * Per phase we keep the wall-clock time, the bytes allocated by the thread running it, and the
+ * number of classes loaded and time spent in gc meanwhile. The last two are jvm wide, so phases
+ * that run concurrently see each others classes and collections.
+ */
+final class StartupTimeline implements ToXContent {
+
+    /** name of the report written to {@code path.logs}, prefixed with the cluster name like the other log files */
+    static final String REPORT_SUFFIX = "_startup.json";
+
+    private final long createdNanos = System.nanoTime();
+    private final long createdMillis = System.currentTimeMillis();
+    /** how long the jvm was up before we got control */
+    private final long jvmUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+
+    // guarded by this
+    private final List<Phase> phases = new ArrayList<>();
+    // guarded by this
+    private boolean loggingConfigured;
+    // guarded by this
+    private long completedNanos = -1;
+
+    /** a single phase, created by {@link #begin(String)} and finished by {@link #end()} */
+    final class Phase {
+        final String name;
+        final String thread;
+        final long startNanos;
+        private final long startAllocatedBytes;
+        private final long startClassCount;
+        private final long startGcMillis;
+
+        long durationNanos = -1;
+        long allocatedBytes = -1;
+        long classesLoaded;
+        long gcMillis;
+
+        private Phase(String name) {
+            this.name = name;
+            this.thread = Thread.currentThread().getName();
+            this.startAllocatedBytes = currentThreadAllocatedBytes();
+            this.startClassCount = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+            this.startGcMillis = totalGcMillis();
+            this.startNanos = System.nanoTime();
+        }
+
+        /** finishes this phase, must be called from the thread that started it */
+        void end() {
+            durationNanos = System.nanoTime() - startNanos;
+            long allocated = currentThreadAllocatedBytes();
+            if (allocated >= 0 && startAllocatedBytes >= 0) {
+                allocatedBytes = allocated - startAllocatedBytes;
+            }
+            classesLoaded = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() - startClassCount;
+            gcMillis = totalGcMillis() - startGcMillis;
+            record(this);
+        }
+    }
+
+    /** starts timing phase {@code name} on the current thread */
+    Phase begin(String name) {
+        return new Phase(name);
+    }
+
+    /** wraps {@code phase} so it is recorded as {@code name}, on whatever thread ends up running it */
+    <T> Callable<T> timed(final String name, final Callable<T> phase) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                Phase timing = begin(name);
+                T result = phase.call();
+                timing.end();
+                return result;
+            }
+        };
+    }
+
+    private synchronized void record(Phase phase) {
+        phases.add(phase);
+        if (loggingConfigured) {
+            log(phase);
+        }
+    }
+
+    /**
+     * Called once logging is configured, phases before that are only logged from here on
+     * since the log configuration is itself a phase.
+     */
+    synchronized void loggingConfigured() {
+        loggingConfigured = true;
+        for (Phase phase : phases) {
+            log(phase);
+        }
+    }
+
+    private void log(Phase phase) {
+        logger().info("startup phase [{}] took [{}]", phase.name, TimeValue.timeValueNanos(phase.durationNanos));
+    }
+
+    /** marks the node as started and writes the report to {@code logsDir} */
+    void completed(Path logsDir, String clusterName) {
+        final long completed = System.nanoTime();
+        synchronized (this) {
+            completedNanos = completed;
+        }
+        ESLogger logger = logger();
+        logger.info("started in [{}] ([{}] since jvm start)", TimeValue.timeValueNanos(completed - createdNanos),
+                TimeValue.timeValueMillis(jvmUptimeMillis + TimeUnit.NANOSECONDS.toMillis(completed - createdNanos)));
+        Path report = logsDir.resolve(clusterName + REPORT_SUFFIX);
+        try {
+            // write to a temporary file first, so readers never see a partial report
+            Path tmp = Files.createTempFile(logsDir, clusterName, REPORT_SUFFIX + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                XContentBuilder builder = XContentFactory.jsonBuilder(out).prettyPrint().startObject();
+                toXContent(builder, ToXContent.EMPTY_PARAMS);
+                builder.endObject().close();
+            }
+            Files.move(tmp, report, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("unable to write startup report [{}]", e, report);
+        }
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("started_at_millis", createdMillis);
+        builder.field("jvm_uptime_at_start_millis", jvmUptimeMillis);
+        if (completedNanos >= 0) {
+            builder.field("total_millis", TimeUnit.NANOSECONDS.toMillis(completedNanos - createdNanos));
+        }
+        builder.startArray("phases");
+        for (Phase phase : phases) {
+            builder.startObject();
+            builder.field("name", phase.name);
+            builder.field("thread", phase.thread);
+            builder.field("start_offset_nanos", phase.startNanos - createdNanos);
+            builder.field("duration_nanos", phase.durationNanos);
+            builder.field("allocated_bytes", phase.allocatedBytes);
+            builder.field("classes_loaded", phase.classesLoaded);
+            builder.field("gc_time_millis", phase.gcMillis);
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    /** not a constant: the timeline is created before the logger prefix is set up */
+    private static ESLogger logger() {
+        return Loggers.getLogger(StartupTimeline.class);
+    }
+
+    /** bytes allocated by the current thread, or -1 if the jvm doesn't tell us */
+    private static long currentThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long totalGcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long time = gc.getCollectionTime();
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+}
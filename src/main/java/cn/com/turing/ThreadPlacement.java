@@ -0,0 +1,220 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pins the threads of named thread pools to sets of cpus and gives them an io priority (linux), so
+ * background work like snapshots and force merges can't take the cores and disk bandwidth of
+ * searches. Configured as {@value Bootstrap#THREAD_POOLS_SETTING_PREFIX}{@code <pool>.cpus} (a cpu
+ * list like {@code 0-3,8}) and {@code .io_priority} ({@code idle}, or {@code best_effort} or
+ * {@code realtime} with an optional level from 0, the highest, to 7 like {@code best_effort:6}),
+ * or by numa node, see {@link NumaPlacement}. Io priorities only matter to io schedulers that
+ * honour them, like bfq.
+ * <p>
+ * The thread pools are created by the node, so their thread factories are wrapped once the node
+ * is built: each new thread places itself ({@code sched_setaffinity}, {@code ioprio_set}) before
+ * it runs its first task. Pool threads are only started when there is work for them, so normally
+ * there are none yet; any that already run are left where they are.
+ */
+final class ThreadPlacement implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(ThreadPlacement.class);
+
+    /** no io priority set */
+    static final int NO_IO_PRIORITY = -1;
+
+    /** the placement of a single pool */
+    static final class Pool {
+        final String name;
+        /** null if not pinned */
+        final BitSet cpus;
+        /** {@link #NO_IO_PRIORITY} if not set */
+        final int ioPriority;
+        final AtomicLong placed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        Pool(String name, BitSet cpus, int ioPriority) {
+            this.name = name;
+            this.cpus = cpus;
+            this.ioPriority = ioPriority;
+        }
+
+        /** places the calling thread */
+        void place() {
+            String error = null;
+            if (cpus != null) {
+                error = Natives.trySetAffinity(cpus.toLongArray());
+                if (error != null) {
+                    error = "unable to pin to cpus [" + NumaTopology.toCpuList(cpus) + "]: " + error;
+                }
+            }
+            if (error == null && ioPriority != NO_IO_PRIORITY) {
+                error = Natives.trySetIoPriority(ioPriority);
+                if (error != null) {
+                    error = "unable to set io priority [" + ioPriorityToString(ioPriority) + "]: " + error;
+                }
+            }
+            if (error == null) {
+                placed.incrementAndGet();
+            } else if (failed.getAndIncrement() == 0) {
+                // once per pool is enough, the next thread fails the same way
+                logger.warn("[{}] threads: {}", name, error);
+            }
+        }
+    }
+
+    private final Map<String,Pool> pools = new LinkedHashMap<>();
+
+    /** reads the placement of the pools configured in {@code settings} */
+    static ThreadPlacement fromSettings(Settings settings) {
+        ThreadPlacement placement = new ThreadPlacement();
+        for (Map.Entry<String,Settings> entry : settings.getGroups(Bootstrap.THREAD_POOLS_SETTING_PREFIX).entrySet()) {
+            String cpus = entry.getValue().get("cpus");
+            String ioPriority = entry.getValue().get("io_priority");
+            placement.add(entry.getKey(), cpus == null ? null : NumaTopology.parseCpuList(cpus),
+                    ioPriority == null ? NO_IO_PRIORITY : parseIoPriority(entry.getKey(), ioPriority));
+        }
+        return placement;
+    }
+
+    /** parses {@code class[:level]}, see the class docs */
+    static int parseIoPriority(String pool, String value) {
+        String[] parts = value.split(":", 2);
+        int ioClass;
+        switch (parts[0]) {
+            case "idle":
+                ioClass = JNALinuxLibrary.IOPRIO_CLASS_IDLE;
+                break;
+            case "best_effort":
+                ioClass = JNALinuxLibrary.IOPRIO_CLASS_BE;
+                break;
+            case "realtime":
+                ioClass = JNALinuxLibrary.IOPRIO_CLASS_RT;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown io priority class [" + parts[0] + "] for thread pool [" + pool
+                        + "], expected [idle], [best_effort] or [realtime]");
+        }
+        // the kernel ignores the level of the idle class
+        int level = 4;
+        if (parts.length == 2) {
+            try {
+                level = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                level = -1;
+            }
+            if (level < 0 || level > 7 || ioClass == JNALinuxLibrary.IOPRIO_CLASS_IDLE) {
+                throw new IllegalArgumentException("invalid io priority level [" + parts[1] + "] for thread pool [" + pool
+                        + "], expected 0 to 7 for [best_effort] or [realtime]");
+            }
+        }
+        return JNALinuxLibrary.ioPriority(ioClass, ioClass == JNALinuxLibrary.IOPRIO_CLASS_IDLE ? 0 : level);
+    }
+
+    static String ioPriorityToString(int ioPriority) {
+        int ioClass = ioPriority >> JNALinuxLibrary.IOPRIO_CLASS_SHIFT;
+        int level = ioPriority & ((1 << JNALinuxLibrary.IOPRIO_CLASS_SHIFT) - 1);
+        switch (ioClass) {
+            case JNALinuxLibrary.IOPRIO_CLASS_IDLE:
+                return "idle";
+            case JNALinuxLibrary.IOPRIO_CLASS_BE:
+                return "best_effort:" + level;
+            case JNALinuxLibrary.IOPRIO_CLASS_RT:
+                return "realtime:" + level;
+            default:
+                return Integer.toString(ioPriority);
+        }
+    }
+
+    /**
+     * places the threads of {@code pool}: pins them to {@code cpus} unless that is null, and sets
+     * their io priority unless it is {@link #NO_IO_PRIORITY}
+     */
+    void add(String pool, BitSet cpus, int ioPriority) {
+        if (cpus != null && cpus.isEmpty()) {
+            throw new IllegalArgumentException("no cpus to pin thread pool [" + pool + "] to");
+        }
+        if (cpus == null && ioPriority == NO_IO_PRIORITY) {
+            throw new IllegalArgumentException("thread pool [" + pool + "] has neither cpus nor an io priority");
+        }
+        if (pools.put(pool, new Pool(pool, cpus, ioPriority)) != null) {
+            throw new IllegalArgumentException("thread pool [" + pool + "] is placed twice, by cpus and by numa node");
+        }
+    }
+
+    Map<String,Pool> pools() {
+        return Collections.unmodifiableMap(pools);
+    }
+
+    boolean isEmpty() {
+        return pools.isEmpty();
+    }
+
+    /** wraps the thread factories of the placed pools of {@code threadPool} */
+    void install(ThreadPool threadPool) {
+        for (final Pool pool : pools.values()) {
+            Executor executor = threadPool.executor(pool.name);
+            if (executor instanceof ThreadPoolExecutor == false) {
+                logger.warn("thread pool [{}] runs its tasks on the caller's thread, it can't be placed", pool.name);
+                continue;
+            }
+            ThreadPoolExecutor pooled = (ThreadPoolExecutor) executor;
+            if (pooled.getPoolSize() > 0) {
+                logger.debug("[{}] threads of [{}] already run and are not placed", pooled.getPoolSize(), pool.name);
+            }
+            final ThreadFactory delegate = pooled.getThreadFactory();
+            pooled.setThreadFactory(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable task) {
+                    return delegate.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                pool.place();
+                            } catch (Throwable t) {
+                                // placing is best effort, the thread must run its task either way
+                                if (pool.failed.getAndIncrement() == 0) {
+                                    logger.warn("[{}] threads: unable to place", t, pool.name);
+                                }
+                            }
+                            task.run();
+                        }
+                    });
+                }
+            });
+            logger.debug("placing new [{}] threads", pool.name);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (Pool pool : pools.values()) {
+            builder.startObject(pool.name);
+            if (pool.cpus != null) {
+                builder.field("cpus", NumaTopology.toCpuList(pool.cpus));
+            }
+            if (pool.ioPriority != NO_IO_PRIORITY) {
+                builder.field("io_priority", ioPriorityToString(pool.ioPriority));
+            }
+            builder.field("placed_threads", pool.placed.get());
+            builder.field("failed_threads", pool.failed.get());
+            builder.endObject();
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,182 @@
+package cn.com.turing;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per region control over transparent huge pages (linux), with {@code madvise(MADV_HUGEPAGE)}
+ * and {@code madvise(MADV_NOHUGEPAGE)}: the java heap and the memory mapped index files on the
+ * data paths can each be opted in or out, independent of the system wide mode.
+ * <p>
+ * With the system mode {@code madvise}, opting the heap in cuts its TLB misses without exposing
+ * the rest of the process to compaction stalls. With {@code always}, opting the index files out
+ * keeps the page cache from being compacted for them. The heap is advised once at startup; index
+ * files are mapped and unmapped as segments come and go, so their mappings are looked up in
+ * {@code /proc/self/maps} periodically and new ones advised.
+ */
+final class TransparentHugePages implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(TransparentHugePages.class);
+
+    static final String ENABLED_FILE = "/sys/kernel/mm/transparent_hugepage/enabled";
+    static final String DEFRAG_FILE = "/sys/kernel/mm/transparent_hugepage/defrag";
+
+    enum Advice {
+        /** leave the region alone */
+        DEFAULT(0),
+        HUGE(JNACLibrary.MADV_HUGEPAGE),
+        NO_HUGE(JNACLibrary.MADV_NOHUGEPAGE);
+
+        final int madvise;
+
+        Advice(int madvise) {
+            this.madvise = madvise;
+        }
+
+        static Advice parse(String setting, String value) {
+            try {
+                return value == null ? DEFAULT : valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("[" + setting + "] must be one of [default, huge, no_huge], got [" + value + "]", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    final Advice heap;
+    final Advice indexFiles;
+    final TimeValue refreshInterval;
+
+    // written by the thread advising index file mappings, read by stats
+    private volatile boolean heapAdvised;
+    private volatile int indexMappings;
+    private volatile long indexBytes;
+    private volatile long failures;
+
+    /** start to end address of the index file mappings already advised, only touched by one refresh at a time */
+    private Map<Long,Long> advised = new HashMap<>();
+
+    TransparentHugePages(Advice heap, Advice indexFiles, TimeValue refreshInterval) {
+        this.heap = heap;
+        this.indexFiles = indexFiles;
+        this.refreshInterval = refreshInterval;
+    }
+
+    static TransparentHugePages fromSettings(Settings settings) {
+        return new TransparentHugePages(
+                Advice.parse(Bootstrap.THP_HEAP_SETTING, settings.get(Bootstrap.THP_HEAP_SETTING)),
+                Advice.parse(Bootstrap.THP_INDEX_FILES_SETTING, settings.get(Bootstrap.THP_INDEX_FILES_SETTING)),
+                settings.getAsTime(Bootstrap.THP_REFRESH_INTERVAL_SETTING, TimeValue.timeValueSeconds(30)));
+    }
+
+    /** the system wide mode (always, madvise or never), or null if the kernel has no transparent huge pages */
+    static String systemMode() {
+        return ProcFiles.selected(ProcFiles.line(ENABLED_FILE));
+    }
+
+    /** the system wide defrag mode, or null if the kernel has no transparent huge pages */
+    static String systemDefrag() {
+        return ProcFiles.selected(ProcFiles.line(DEFRAG_FILE));
+    }
+
+    /** true if there is anything to advise on this system */
+    boolean enabled() {
+        if (heap == Advice.DEFAULT && indexFiles == Advice.DEFAULT) {
+            return false;
+        }
+        if (Constants.LINUX == false || systemMode() == null) {
+            logger.warn("transparent huge pages are not available, ignoring [{}] and [{}]", Bootstrap.THP_HEAP_SETTING,
+                    Bootstrap.THP_INDEX_FILES_SETTING);
+            return false;
+        }
+        if ("never".equals(systemMode()) && (heap == Advice.HUGE || indexFiles == Advice.HUGE)) {
+            logger.warn("transparent huge pages are disabled system wide, madvise(MADV_HUGEPAGE) has no effect");
+        }
+        return true;
+    }
+
+    /** advises the java heap */
+    void adviseHeap() {
+        if (heap == Advice.DEFAULT) {
+            return;
+        }
+        long[] range = ProcMaps.javaHeap();
+        if (range == null) {
+            logger.warn("unable to find the java heap, not advising [{}] for it", heap);
+            return;
+        }
+        String error = Natives.tryMadvise(range[0], range[1] - range[0], heap.madvise);
+        if (error != null) {
+            failures++;
+            logger.warn("unable to advise [{}] for the java heap: {}", heap, error);
+        } else {
+            heapAdvised = true;
+            logger.debug("advised [{}] for the java heap at [0x{}-0x{}]", heap, Long.toHexString(range[0]), Long.toHexString(range[1]));
+        }
+    }
+
+    /** advises the mappings of files below {@code dataPaths} that were not advised yet */
+    void adviseIndexFiles(Path[] dataPaths) {
+        if (indexFiles == Advice.DEFAULT) {
+            return;
+        }
+        Map<Long,Long> current = new HashMap<>();
+        long bytes = 0;
+        for (ProcMaps.Mapping mapping : ProcMaps.filesBelow(dataPaths)) {
+            Long end = advised.get(mapping.start);
+            if (end == null || end != mapping.end) {
+                String error = Natives.tryMadvise(mapping.start, mapping.length(), indexFiles.madvise);
+                if (error != null) {
+                    // most likely unmapped in the meantime
+                    failures++;
+                    logger.trace("unable to advise [{}] for [{}]: {}", indexFiles, mapping.path, error);
+                    continue;
+                }
+            }
+            current.put(mapping.start, mapping.end);
+            bytes += mapping.length();
+        }
+        advised = current;
+        indexMappings = current.size();
+        indexBytes = bytes;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("enabled", systemMode());
+        builder.field("defrag", systemDefrag());
+        builder.startObject("heap");
+        builder.field("advice", heap.toString());
+        builder.field("advised", heapAdvised);
+        builder.endObject();
+        builder.startObject("index_files");
+        builder.field("advice", indexFiles.toString());
+        builder.field("mappings", indexMappings);
+        builder.field("mapped_in_bytes", indexBytes);
+        builder.endObject();
+        builder.field("failures", failures);
+        for (String line : ProcFiles.lines(PathUtils.get(ProcFiles.SMAPS_ROLLUP))) {
+            // AnonHugePages:    2048 kB
+            if (line.startsWith("AnonHugePages:")) {
+                builder.field("anon_huge_pages_in_bytes", Long.parseLong(line.substring("AnonHugePages:".length()).trim().split("\\s+")[0]) * 1024);
+            }
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,202 @@
+package cn.com.turing;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays representative requests against the local node after it started, so the hot paths are
+ * compiled before it reports ready (see {@link NodeLifecycle}).
+ * <p>
+ * The requests file is a list of sections separated by blank lines. The first line of a section is
+ * {@code search <indices>} or {@code bulk}, the rest is the request body: a search source, or bulk
+ * lines. Lines starting with {@code #} are comments. Bulk requests are executed for real, so they
+ * should write to an index kept for the purpose.
+ * <p>
+ * The requests are replayed in passes at a bounded rate, until a pass spent less than the
+ * configured share of its time in the jit compiler, or the time budget is used up.
+ */
+final class Warmup implements ToXContent {
+
+    private final ESLogger logger = Loggers.getLogger(Warmup.class);
+
+    private final List<Request> requests;
+    private final double requestsPerSecond;
+    private final TimeValue maxTime;
+    private final double settledCompileRatio;
+
+    // written by the thread running the warm-up, read by stats
+    private volatile int passes;
+    private volatile long executed;
+    private volatile long failed;
+    private volatile long tookNanos = -1;
+    private volatile boolean settled;
+
+    Warmup(List<Request> requests, double requestsPerSecond, TimeValue maxTime, double settledCompileRatio) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("rate must be > 0, got [" + requestsPerSecond + "]");
+        }
+        if (settledCompileRatio < 0 || settledCompileRatio > 1) {
+            throw new IllegalArgumentException("compile ratio must be between 0 and 1, got [" + settledCompileRatio + "]");
+        }
+        this.requests = Collections.unmodifiableList(requests);
+        this.requestsPerSecond = requestsPerSecond;
+        this.maxTime = maxTime;
+        this.settledCompileRatio = settledCompileRatio;
+    }
+
+    /** a single request of the requests file */
+    static final class Request {
+        final String type;
+        final String[] indices;
+        final BytesArray body;
+
+        Request(String type, String[] indices, BytesArray body) {
+            this.type = type;
+            this.indices = indices;
+            this.body = body;
+        }
+    }
+
+    /** parses a requests file, see the class docs for the format */
+    static List<Request> parse(Path file) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = null;
+            StringBuilder body = new StringBuilder();
+            int lineNumber = 0;
+            for (String line = reader.readLine(); ; line = reader.readLine()) {
+                lineNumber++;
+                if (line != null && line.startsWith("#")) {
+                    continue;
+                }
+                if (line == null || line.trim().isEmpty()) {
+                    if (header != null) {
+                        requests.add(request(file, lineNumber, header, body.toString()));
+                        header = null;
+                        body.setLength(0);
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                } else if (header == null) {
+                    header = line.trim();
+                } else {
+                    body.append(line).append('\n');
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("no requests in warm-up file [" + file + "]");
+        }
+        return requests;
+    }
+
+    private static Request request(Path file, int lineNumber, String header, String body) {
+        String[] parts = header.split("\\s+", 2);
+        switch (parts[0]) {
+            case "search":
+                String[] indices = parts.length > 1 ? Strings.splitStringByCommaToArray(parts[1]) : Strings.EMPTY_ARRAY;
+                return new Request("search", indices, new BytesArray(body));
+            case "bulk":
+                if (body.isEmpty()) {
+                    throw new IllegalArgumentException("empty bulk request before line [" + lineNumber + "] of warm-up file [" + file + "]");
+                }
+                return new Request("bulk", Strings.EMPTY_ARRAY, new BytesArray(body));
+            default:
+                throw new IllegalArgumentException("unknown request [" + parts[0] + "] before line [" + lineNumber
+                        + "] of warm-up file [" + file + "], expected [search] or [bulk]");
+        }
+    }
+
+    /** replays the requests until the jit settles, the time budget is used up or the node is no longer warming */
+    void run(Client client, NodeLifecycle lifecycle) {
+        final long start = System.nanoTime();
+        final long deadline = start + maxTime.nanos();
+        final CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        final boolean compileTimeSupported = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        final RateLimiter limiter = RateLimiter.create(requestsPerSecond);
+        logger.info("warming up with [{}] requests at [{}/s], for at most [{}]", requests.size(), requestsPerSecond, maxTime);
+        while (System.nanoTime() < deadline && lifecycle.state() == NodeLifecycle.State.WARMING) {
+            long passStart = System.nanoTime();
+            long compileStart = compileTimeSupported ? compiler.getTotalCompilationTime() : 0;
+            for (Request request : requests) {
+                if (System.nanoTime() >= deadline || lifecycle.state() != NodeLifecycle.State.WARMING) {
+                    break;
+                }
+                limiter.acquire();
+                execute(client, request);
+            }
+            passes++;
+            if (compileTimeSupported == false) {
+                // nothing to wait for, one pass has to do
+                settled = true;
+                break;
+            }
+            long passMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - passStart);
+            long compileMillis = compiler.getTotalCompilationTime() - compileStart;
+            logger.debug("warm-up pass [{}] took [{}ms], [{}ms] of it compiling", passes, passMillis, compileMillis);
+            if (passMillis > 0 && compileMillis <= passMillis * settledCompileRatio) {
+                settled = true;
+                break;
+            }
+        }
+        tookNanos = System.nanoTime() - start;
+        if (settled) {
+            logger.info("warmed up in [{}] passes, took [{}]", passes, TimeValue.timeValueNanos(tookNanos));
+        } else {
+            logger.info("warm-up stopped after [{}] passes and [{}], the jit is still busy", passes, TimeValue.timeValueNanos(tookNanos));
+        }
+    }
+
+    private void execute(Client client, Request request) {
+        try {
+            if ("search".equals(request.type)) {
+                client.search(new SearchRequest(request.indices).source(request.body)).actionGet();
+            } else {
+                BulkRequest bulk = new BulkRequest();
+                bulk.add(request.body, null, null);
+                client.bulk(bulk).actionGet();
+            }
+        } catch (Exception e) {
+            // the node is up, a failing warm-up request must not keep it from serving
+            failed++;
+            logger.debug("warm-up [{}] request failed", e, request.type);
+        }
+        executed++;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("requests", requests.size());
+        builder.field("passes", passes);
+        builder.field("executed", executed);
+        builder.field("failed", failed);
+        builder.field("settled", settled);
+        if (tookNanos >= 0) {
+            builder.field("took_millis", TimeUnit.NANOSECONDS.toMillis(tookNanos));
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,107 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reading cgroups v1 and v2 from recorded {@code /proc/self/cgroup} files and hierarchies, and
+ * sizing the node from them.
+ */
+public class CgroupTests {
+
+    /** the cgroup recorded as {@code name}: its proc file, and its hierarchies below root */
+    static Cgroup cgroup(String name) throws Exception {
+        Path dir = PathUtils.get(CgroupTests.class.getResource("cgroup/" + name).toURI());
+        return Cgroup.read(dir.resolve("cgroup"), dir.resolve("root").toString());
+    }
+
+    @Test
+    public void testV2() throws Exception {
+        Cgroup cgroup = cgroup("v2");
+        assertEquals(2, cgroup.version);
+        assertEquals("/system.slice/elasticsearch.service", cgroup.path);
+        assertEquals(150000, cgroup.cpuQuotaMicros);
+        assertEquals(100000, cgroup.cpuPeriodMicros);
+        assertEquals("0-3", NumaTopology.toCpuList(cgroup.cpuset));
+        assertEquals(4294967296L, cgroup.memoryLimitBytes);
+        assertTrue(cgroup.limited());
+        // 1.5 cpus still run two threads at a time
+        assertEquals(2, cgroup.processors(8));
+        assertEquals(1, cgroup.processors(1));
+    }
+
+    @Test
+    public void testV2MountedAtOwnCgroup() throws Exception {
+        // inside a container the path isn't below the mount, the mount itself is the cgroup
+        Cgroup cgroup = cgroup("v2-container");
+        assertEquals(2, cgroup.version);
+        assertEquals(-1, cgroup.cpuQuotaMicros);
+        assertNull(cgroup.cpuset);
+        assertEquals(-1, cgroup.memoryLimitBytes);
+        assertFalse(cgroup.limited());
+        assertEquals(8, cgroup.processors(8));
+    }
+
+    @Test
+    public void testV1() throws Exception {
+        Cgroup cgroup = cgroup("v1");
+        assertEquals(1, cgroup.version);
+        assertEquals("/docker/4b6f0", cgroup.path);
+        assertEquals(200000, cgroup.cpuQuotaMicros);
+        assertEquals(100000, cgroup.cpuPeriodMicros);
+        // no effective cpus, falls back to the configured ones
+        assertEquals("0-7", NumaTopology.toCpuList(cgroup.cpuset));
+        assertEquals(2147483648L, cgroup.memoryLimitBytes);
+        assertEquals(2, cgroup.processors(16));
+    }
+
+    @Test
+    public void testV1MountedAtOwnCgroup() throws Exception {
+        Cgroup cgroup = cgroup("v1-container");
+        assertEquals(1, cgroup.version);
+        assertEquals(-1, cgroup.cpuQuotaMicros);
+        assertEquals("0-15", NumaTopology.toCpuList(cgroup.cpuset));
+        // the largest page aligned long is v1's way of saying unlimited
+        assertEquals(-1, cgroup.memoryLimitBytes);
+        assertEquals(16, cgroup.processors(32));
+    }
+
+    @Test
+    public void testNoCgroup() throws Exception {
+        Path dir = PathUtils.get(CgroupTests.class.getResource("cgroup").toURI());
+        Cgroup cgroup = Cgroup.read(dir.resolve("missing"), dir.toString());
+        assertEquals(0, cgroup.version);
+        assertFalse(cgroup.limited());
+    }
+
+    @Test
+    public void testSizeForCgroup() throws Exception {
+        Cgroup cgroup = cgroup("v1");
+        int available = Runtime.getRuntime().availableProcessors();
+        Settings settings = Settings.builder().put("path.home", "/tmp").build();
+        Settings sized = Bootstrap.sizeForCgroup(settings, cgroup);
+        if (available > 2) {
+            assertEquals("2", sized.get("processors"));
+            assertEquals("/tmp", sized.get("path.home"));
+        } else {
+            assertSame(settings, sized);
+        }
+        // set explicitly, or switched off
+        Settings processors = Settings.builder().put("processors", 5).build();
+        assertSame(processors, Bootstrap.sizeForCgroup(processors, cgroup));
+        Settings off = Settings.builder().put(Bootstrap.CGROUP_AUTO_SIZE_SETTING, false).build();
+        assertSame(off, Bootstrap.sizeForCgroup(off, cgroup));
+        // no limits, nothing to size for
+        Settings unlimited = Settings.EMPTY;
+        assertSame(unlimited, Bootstrap.sizeForCgroup(unlimited, cgroup("v2-container")));
+    }
+}
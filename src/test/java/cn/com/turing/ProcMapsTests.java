@@ -0,0 +1,86 @@
+package cn.com.turing;
+
+import org.elasticsearch.common.io.PathUtils;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Finding the heap in recorded maps files. The range found is locked, bound and advised, so
+ * anything but an unambiguous match has to come back as not found.
+ */
+public class ProcMapsTests {
+
+    static final long GB = 1024L * 1024 * 1024;
+
+    /** the mappings of the maps file recorded as {@code name} */
+    static List<ProcMaps.Mapping> maps(String name) throws Exception {
+        List<ProcMaps.Mapping> mappings = new ArrayList<>();
+        for (String line : Files.readAllLines(PathUtils.get(ProcMapsTests.class.getResource("maps/" + name).toURI()),
+                StandardCharsets.UTF_8)) {
+            ProcMaps.Mapping mapping = ProcMaps.parse(line);
+            if (mapping != null) {
+                mappings.add(mapping);
+            }
+        }
+        return mappings;
+    }
+
+    @Test
+    public void testParse() {
+        ProcMaps.Mapping file = ProcMaps.parse("700000000-700010000 r--s 00010000 fd:01 2752538    /data/my index/_0.tim");
+        assertEquals(0x700000000L, file.start);
+        assertEquals(0x700010000L, file.end);
+        assertEquals("r--s", file.permissions);
+        assertEquals(0x10000, file.offset);
+        assertEquals("/data/my index/_0.tim", file.path);
+        ProcMaps.Mapping anonymous = ProcMaps.parse("7f3a2c000000-7f3a2c021000 rw-p 00000000 00:00 0 ");
+        assertTrue(anonymous.anonymous());
+        assertEquals(0x21000, anonymous.length());
+        // above the largest signed long
+        assertEquals(0xffffffffff600000L, ProcMaps.parse("ffffffffff600000-ffffffffff601000 r-xp 00000000 00:00 0  [vsyscall]").start);
+        assertNull(ProcMaps.parse(""));
+        assertNull(ProcMaps.parse("not a mapping at all"));
+        assertNull(ProcMaps.parse("7f3a2c000000-xyz rw-p 00000000 00:00 0"));
+    }
+
+    @Test
+    public void testHeapOfExactlyMaxHeap() throws Exception {
+        // committed and reserved part of a 2gb heap, the class space is elsewhere
+        assertArrayEquals(new long[] { 0x680000000L, 0x700000000L }, ProcMaps.javaHeap(maps("heap.txt"), 2 * GB, GB));
+        assertArrayEquals(new long[] { 0x680000000L, 0x700000000L }, ProcMaps.javaHeap(maps("heap.txt"), 2 * GB, 0));
+    }
+
+    @Test
+    public void testHeapWithClassSpaceBehindIt() throws Exception {
+        assertArrayEquals(new long[] { 0xc0000000L, 0x100000000L }, ProcMaps.javaHeap(maps("heap-and-class-space.txt"), GB, GB));
+        // without knowing about the class space the run is too large
+        assertNull(ProcMaps.javaHeap(maps("heap-and-class-space.txt"), GB, 0));
+    }
+
+    @Test
+    public void testAnonymousMappingMergedBelowHeap() throws Exception {
+        // an arena right below the heap makes the run 16mb too large, which part is the heap is a guess
+        assertNull(ProcMaps.javaHeap(maps("heap-merged-below.txt"), GB, 0));
+        assertNull(ProcMaps.javaHeap(maps("heap-merged-below.txt"), GB, GB));
+    }
+
+    @Test
+    public void testTwoRunsOfMaxHeap() throws Exception {
+        assertNull(ProcMaps.javaHeap(maps("two-heap-sized-runs.txt"), GB, 0));
+    }
+
+    @Test
+    public void testNoHeap() throws Exception {
+        assertNull(ProcMaps.javaHeap(maps("heap.txt"), 4 * GB, 0));
+        assertNull(ProcMaps.javaHeap(new ArrayList<ProcMaps.Mapping>(), GB, 0));
+    }
+}